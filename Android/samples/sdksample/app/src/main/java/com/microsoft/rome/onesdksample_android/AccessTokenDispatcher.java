@@ -0,0 +1,166 @@
+//
+//  Copyright (c) Microsoft Corporation. All rights reserved.
+//
+
+package com.microsoft.rome.onesdksample_android;
+
+import android.os.Build;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.microsoft.connecteddevices.AsyncOperation;
+import com.microsoft.connecteddevices.ConnectedDevicesAccessTokenRequest;
+import com.microsoft.connecteddevices.ConnectedDevicesAccount;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Completes the SDK's access token requests. A token the account can return right away, e.g. from its cache, completes its request directly.
+ * Otherwise, requests in flight for the same account and the same set of scopes form a group, which is resolved with a single token fetch,
+ * completing every request in it together. Every group has a deadline: if the fetch has not finished by then, its requests are completed
+ * with an error.
+ */
+public class AccessTokenDispatcher {
+    // region Member Variables
+    private final String TAG = AccessTokenDispatcher.class.getName();
+
+    private static final String FETCH_FAILED_MESSAGE = "The Account could not return a token with those scopes";
+
+    private final ScheduledThreadPoolExecutor mDeadlineExecutor = new ScheduledThreadPoolExecutor(1);
+    private final long mDeadlineMillis;
+
+    // Groups whose token fetch is in flight, by account and canonical scopes. Guarded by this.
+    private final Map<String, Group> mGroups = new HashMap<>();
+    // endregion
+
+    /**
+     * Private helper class - requests waiting on the same token fetch.
+     */
+    private static final class Group {
+        final List<ConnectedDevicesAccessTokenRequest> mRequests = new ArrayList<>();
+        ScheduledFuture<?> mDeadline;
+    }
+
+    // region Constructors
+    /**
+     * @param deadlineMillis Longest time a request waits for its token before it is completed with an error
+     */
+    public AccessTokenDispatcher(long deadlineMillis) {
+        mDeadlineMillis = deadlineMillis;
+
+        // Most fetches finish well before their deadline, so don't keep cancelled deadlines queued until they would have been due
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mDeadlineExecutor.setRemoveOnCancelPolicy(true);
+        }
+    }
+    // endregion
+
+    // region public instance methods
+    /**
+     * Complete the request with a token for the account, joining the fetch already in flight for the same account and scopes, if any.
+     * @param account Account the token is requested for
+     * @param request Request to complete
+     */
+    public void dispatch(final Account account, ConnectedDevicesAccessTokenRequest request) {
+        final List<String> scopes = request.getScopes();
+        final String key = getKey(account.getAccount(), scopes);
+
+        synchronized (this) {
+            Group pendingGroup = mGroups.get(key);
+            if (pendingGroup != null) {
+                Log.v(TAG, "Joining the token request already in flight for account: " + account.getAccount().getId());
+                pendingGroup.mRequests.add(request);
+                return;
+            }
+        }
+
+        AsyncOperation<String> tokenOperation;
+        try {
+            tokenOperation = account.getAccessTokenAsync(scopes);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Token request for account: " + account.getAccount().getId() + " encountered " + e);
+            request.completeWithErrorMessage(FETCH_FAILED_MESSAGE);
+            return;
+        }
+
+        // Tokens served from the cache are ready right away, and need neither a group nor a deadline
+        if (tokenOperation.isDone()) {
+            String token = tokenOperation.isCompletedExceptionally() ? null : tokenOperation.getNow(null);
+            if (token != null) {
+                request.completeWithAccessToken(token);
+            } else {
+                request.completeWithErrorMessage(FETCH_FAILED_MESSAGE);
+            }
+            return;
+        }
+
+        final Group group;
+        synchronized (this) {
+            Group pendingGroup = mGroups.get(key);
+            if (pendingGroup != null) {
+                // Another request started a fetch meanwhile, so share its result rather than starting another group
+                pendingGroup.mRequests.add(request);
+                return;
+            }
+
+            group = new Group();
+            group.mRequests.add(request);
+            mGroups.put(key, group);
+            group.mDeadline = mDeadlineExecutor.schedule(() -> {
+                Log.e(TAG, "Token request for account: " + account.getAccount().getId() + " did not complete within " + mDeadlineMillis + "ms");
+                completeGroup(key, group, null, "The Account did not return a token in time");
+            }, mDeadlineMillis, TimeUnit.MILLISECONDS);
+        }
+
+        tokenOperation.whenComplete((String token, Throwable throwable) -> {
+            if (throwable != null || token == null) {
+                completeGroup(key, group, null, FETCH_FAILED_MESSAGE);
+            } else {
+                completeGroup(key, group, token, null);
+            }
+        });
+    }
+    // endregion
+
+    // region private instance methods
+    /**
+     * Complete every request in the group, either with the token or with the error message. Only the first call for a group has any effect.
+     */
+    private void completeGroup(String key, Group group, String token, String errorMessage) {
+        List<ConnectedDevicesAccessTokenRequest> requests;
+        synchronized (this) {
+            if (mGroups.get(key) != group) {
+                return; // Already completed, by the fetch or by the deadline
+            }
+
+            mGroups.remove(key);
+            group.mDeadline.cancel(false);
+            requests = new ArrayList<>(group.mRequests);
+        }
+
+        Log.i(TAG, "Completing " + requests.size() + " token request(s)" + ((token != null) ? "" : " with an error"));
+        for (ConnectedDevicesAccessTokenRequest request : requests) {
+            if (token != null) {
+                request.completeWithAccessToken(token);
+            } else {
+                request.completeWithErrorMessage(errorMessage);
+            }
+        }
+    }
+
+    /**
+     * Get the key of the group for the account and scopes. Scopes are sorted and deduplicated,
+     * so requests listing the same scopes in a different order share a group.
+     */
+    private static String getKey(ConnectedDevicesAccount account, List<String> scopes) {
+        return account.getType() + ":" + account.getId() + "|" + TextUtils.join(" ", new TreeSet<>(scopes));
+    }
+    // endregion
+}
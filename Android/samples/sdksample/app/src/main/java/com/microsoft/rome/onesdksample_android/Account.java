@@ -25,14 +25,18 @@ import com.microsoft.connecteddevices.ConnectedDevicesPlatform;
 import com.microsoft.connecteddevices.remotesystems.commanding.AppServiceProvider;
 import com.microsoft.connecteddevices.remotesystems.commanding.LaunchUriProvider;
 import com.microsoft.connecteddevices.signinhelpers.SigninHelperAccount;
+import com.microsoft.connecteddevices.signinhelpers.MSASigninHelperAccount;
 import com.microsoft.connecteddevices.remotesystems.commanding.RemoteSystemAppRegistration;
 import com.microsoft.connecteddevices.remotesystems.commanding.RemoteSystemAppRegistrationPublishResult;
 import com.microsoft.connecteddevices.remotesystems.commanding.RemoteSystemAppRegistrationPublishStatus;
 import com.microsoft.connecteddevices.AsyncOperation;
 import com.microsoft.connecteddevices.ConnectedDevicesAccount;
 
+import java.io.UnsupportedEncodingException;
 import java.lang.IllegalStateException;
 import java.lang.Throwable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -51,12 +55,16 @@ public class Account {
     public final String TIMESTAMP_KEY = "TIMESTAMP_KEY";
     public final String PACKAGE_KEY = "PACKAGE_KEY";
     public final String PACKAGE_VALUE = "com.microsoft.rome.onesdksample_android";
+    public final String REGISTRATION_FINGERPRINT_KEY_PREFIX = "REGISTRATION_FINGERPRINT_KEY_";
 
     private SigninHelperAccount mSignInHelper;
     private ConnectedDevicesAccount mAccount;
     private AccountRegistrationState mState;
     private ConnectedDevicesPlatform mPlatform;
     private RemoteSystemAppRegistration mRegistration;
+    private SharedPreferences mPreferences;
+    // Everything that goes into the RemoteSystemAppRegistration, as part of the fingerprint of the last successful registration
+    private String mRegistrationDescription;
     // endregion
 
     // region Constructors
@@ -92,9 +100,10 @@ public class Account {
      * Perform all actions required to have this account signed in, added to the
      * ConnectedDevicesPlatform.AccountManager and registered with the platform.
      * @param context Application context
+     * @param coordinator Coordinator to register the account through, so that preparation shares a job with any other registration of it
      * @return The async result for this operation
      */
-    public AsyncOperation<Boolean> prepareAccountAsync(final Context context) {
+    public AsyncOperation<Boolean> prepareAccountAsync(final Context context, final RegistrationCoordinator coordinator) {
         // Accounts can be in 3 different scenarios:
         // 1: cached account in good standing (initialized in the SDK and our token cache).
         // 2: account missing from the SDK but present in our cache: Add and initialize account.
@@ -109,7 +118,8 @@ public class Account {
             // Scenario 1
             case IN_APP_CACHE_AND_SDK_CACHE:
                 initializeSubcomponents(context);
-                return registerAccountWithSdkAsync();
+                // Skips the network work if nothing changed since the last successful registration
+                return coordinator.requestRegistration(this, false);
             // Scenario 2
             case IN_APP_CACHE_ONLY: {
                 // Add the this account to the ConnectedDevicesPlatform.AccountManager
@@ -123,13 +133,15 @@ public class Account {
                     // Set the registration state of this account as in both app and sdk cache
                     mState = AccountRegistrationState.IN_APP_CACHE_AND_SDK_CACHE;
                     initializeSubcomponents(context);
-                    return registerAccountWithSdkAsync();
+                    // The SDK has not seen this account before, so whatever was registered for it in the past no longer counts
+                    return coordinator.requestRegistration(this, true);
                 });
             }
             // Scenario 3
             case IN_SDK_CACHE_ONLY:
                 // Remove the account from the SDK since the app has no knowledge of it
                 mPlatform.getAccountManager().removeAccountAsync(mAccount);
+                clearRegistrationFingerprint(context.getSharedPreferences(context.getPackageName(), Context.MODE_PRIVATE));
                 // This account could not be prepared
                 return AsyncOperation.completedFuture(false);
             default:
@@ -140,10 +152,22 @@ public class Account {
 
     /**
      * Performs non-blocking registrations for this account, which are
-     * for notifications then for the relay SDK.
+     * for notifications then for the relay SDK. Skipped if the last successful registration was for the same
+     * notification token and the same RemoteSystemAppRegistration.
      * @return The async result for this operation
      */
     public AsyncOperation<Boolean> registerAccountWithSdkAsync() {
+        return registerAccountWithSdkAsync(false);
+    }
+
+    /**
+     * Performs non-blocking registrations for this account, which are
+     * for notifications then for the relay SDK.
+     * @param force Whether to register even if nothing changed since the last successful registration,
+     *              e.g. because the platform reported the registration as expiring
+     * @return The async result for this operation
+     */
+    public AsyncOperation<Boolean> registerAccountWithSdkAsync(final boolean force) {
         if (mState != AccountRegistrationState.IN_APP_CACHE_AND_SDK_CACHE) {
             AsyncOperation<Boolean> toReturn = new AsyncOperation<>();
             toReturn.completeExceptionally(new IllegalStateException("Cannot register this account due to bad state: " + mAccount.getId()));
@@ -152,6 +176,20 @@ public class Account {
 
         // Grab the shared GCM/FCM notification token from this app's BroadcastReceiver
         return FcmNotificationReceiver.getNotificationRegistrationAsync().thenComposeAsync((ConnectedDevicesNotificationRegistration notificationRegistration) -> {
+            // Until initializeSubcomponents runs there are no preferences to read, which counts as no saved fingerprint
+            final SharedPreferences preferences = mPreferences;
+            final String fingerprint = getRegistrationFingerprint(notificationRegistration);
+            final String savedFingerprint = (preferences != null) ? preferences.getString(getRegistrationFingerprintKey(), null) : null;
+            if (!force && fingerprint.equals(savedFingerprint)) {
+                Log.i(TAG, "Registration is unchanged since it last succeeded, skipping it for account: " + mAccount.getId());
+                return AsyncOperation.completedFuture(true);
+            }
+
+            // Until this registration succeeds, the last successful one no longer describes what the platform has
+            if (preferences != null) {
+                clearRegistrationFingerprint(preferences);
+            }
+
             // Perform the registration using the NotificationRegistration
             return mPlatform.getNotificationRegistrationManager().registerAsync(mAccount, notificationRegistration)
                 .thenComposeAsync((ConnectedDevicesNotificationRegistrationResult result) -> {
@@ -168,7 +206,11 @@ public class Account {
                         // It would be a good idea for apps to take a look at the different statuses here and perhaps attempt some sort of remediation.
                         // For example, no network may mean that the app should retry once connectivity is re-established.
                         Log.v(TAG, "RemoteSystemHostRegistration was published with result: " + result.getStatus().toString());
-                        return publishResult.getStatus() == RemoteSystemAppRegistrationPublishStatus.SUCCESS;
+                        boolean published = publishResult.getStatus() == RemoteSystemAppRegistrationPublishStatus.SUCCESS;
+                        if (published && preferences != null) {
+                            preferences.edit().putString(getRegistrationFingerprintKey(), fingerprint).apply();
+                        }
+                        return published;
                     });
                 });
         });
@@ -202,6 +244,15 @@ public class Account {
 
         // Save the RemoteSystemAppRegistration to be "saved" later
         mRegistration = createRemoteSystemAppRegistration(attributes, appServiceProviders, launchUriProvider);
+
+        // Describe the registration, so that registerAccountWithSdkAsync can tell whether it changed since it was last published
+        StringBuilder description = new StringBuilder(attributes.toString());
+        for (AppServiceProvider provider : appServiceProviders) {
+            description.append('|').append(provider.getClass().getName());
+        }
+        description.append('|').append(launchUriProvider.getClass().getName());
+        mRegistrationDescription = description.toString();
+        mPreferences = context.getSharedPreferences(context.getPackageName(), Context.MODE_PRIVATE);
     }
 
     /**
@@ -220,9 +271,20 @@ public class Account {
      */
     public AsyncOperation<ConnectedDevicesAccount> logoutAsync(Activity activity) {
         clearSubcomponents();
+        clearRegistrationFingerprint(activity.getSharedPreferences(activity.getPackageName(), Context.MODE_PRIVATE));
         return mSignInHelper.signOut(activity);
     }
 
+    /**
+     * Let go of this account's sign-in helper, e.g. because the account failed to be prepared and will not be used.
+     * The helper's share of the account's token cache is released, and the saved session is left as is.
+     */
+    public void releaseSignInHelper() {
+        if (mSignInHelper instanceof MSASigninHelperAccount) {
+            ((MSASigninHelperAccount)mSignInHelper).release();
+        }
+    }
+
     /**
      * Get the ConnectedDevicesAccount
      * @return account
@@ -293,6 +355,44 @@ public class Account {
         return timestamp;
     }
 
+    /**
+     * Compute the fingerprint of a registration: the notification registration and the RemoteSystemAppRegistration it is published with.
+     * @param notificationRegistration Notification registration to register the account with
+     * @return Fingerprint to compare against the one saved for the last successful registration
+     */
+    private String getRegistrationFingerprint(ConnectedDevicesNotificationRegistration notificationRegistration) {
+        String description = notificationRegistration.getType() + "|" + notificationRegistration.getAppId() + "|" +
+                             notificationRegistration.getToken() + "|" + mRegistrationDescription;
+        try {
+            // Hashed, so that the notification token itself is not kept in SharedPreferences
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(description.getBytes("UTF-8"));
+            StringBuilder fingerprint = new StringBuilder();
+            for (byte b : hash) {
+                fingerprint.append(String.format("%02x", b));
+            }
+            return fingerprint.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            Log.e(TAG, "Failed to hash the registration fingerprint: \"" + e.getLocalizedMessage() + "\"");
+            return description;
+        }
+    }
+
+    /**
+     * Get the SharedPreferences key the fingerprint of this account's last successful registration is saved under.
+     * @return key
+     */
+    private String getRegistrationFingerprintKey() {
+        return REGISTRATION_FINGERPRINT_KEY_PREFIX + mAccount.getType() + "_" + mAccount.getId();
+    }
+
+    /**
+     * Forget the last successful registration, so that the next registration goes to the network.
+     * @param preferences SharedPreferences the fingerprint is saved in
+     */
+    private void clearRegistrationFingerprint(SharedPreferences preferences) {
+        preferences.edit().remove(getRegistrationFingerprintKey()).apply();
+    }
+
     /**
      * If your app needs to stop using a sub component for some reason,
      * this would be a good place to reset a user data feed for instance.
@@ -0,0 +1,83 @@
+//
+//  Copyright (c) Microsoft Corporation. All rights reserved.
+//
+
+package com.microsoft.rome.onesdksample_android;
+
+import com.microsoft.connecteddevices.ConnectedDevicesAccount;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Thread-safe set of the app's accounts, indexed by account id and type.
+ * Accounts are added and removed from AsyncOperation callbacks while the SDK's event threads look them up, so every change
+ * publishes a new immutable snapshot: lookups and listings never take a lock, and never see a half-made change.
+ */
+public class AccountRegistry {
+    // region Member Variables
+    // Accounts by key, in the order they were added. Replaced as a whole on every change, never modified in place.
+    private volatile Map<String, Account> mAccounts = Collections.emptyMap();
+    private volatile List<Account> mSnapshot = Collections.emptyList();
+    // endregion
+
+    // region public instance methods
+    /**
+     * Add an account, replacing any account with the same id and type.
+     * @param account Account to add
+     */
+    public synchronized void add(Account account) {
+        Map<String, Account> accounts = new LinkedHashMap<>(mAccounts);
+        accounts.put(getKey(account.getAccount()), account);
+        publish(accounts);
+    }
+
+    /**
+     * Remove an account. Does nothing if the account was already removed or replaced.
+     * @param account Account to remove
+     * @return Whether the account was removed
+     */
+    public synchronized boolean remove(Account account) {
+        String key = getKey(account.getAccount());
+        if (mAccounts.get(key) != account) {
+            return false;
+        }
+
+        Map<String, Account> accounts = new LinkedHashMap<>(mAccounts);
+        accounts.remove(key);
+        publish(accounts);
+        return true;
+    }
+
+    /**
+     * Find the account with the same id and type as the given ConnectedDevicesAccount.
+     * @param account ConnectedDevicesAccount to look for
+     * @return Matching account, null if none found
+     */
+    public Account find(ConnectedDevicesAccount account) {
+        return mAccounts.get(getKey(account));
+    }
+
+    /**
+     * Get an immutable snapshot of the accounts, in the order they were added.
+     * @return accounts
+     */
+    public List<Account> getAll() {
+        return mSnapshot;
+    }
+    // endregion
+
+    // region private instance methods
+    private void publish(Map<String, Account> accounts) {
+        mAccounts = Collections.unmodifiableMap(accounts);
+        mSnapshot = Collections.unmodifiableList(new ArrayList<>(accounts.values()));
+    }
+
+    private static String getKey(ConnectedDevicesAccount account) {
+        return account.getType() + ":" + account.getId();
+    }
+    // endregion
+}
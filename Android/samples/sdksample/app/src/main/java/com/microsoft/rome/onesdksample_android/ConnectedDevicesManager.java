@@ -7,6 +7,7 @@ package com.microsoft.rome.onesdksample_android;
 import android.os.Bundle;
 import android.app.Activity;
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.ArrayMap;
 import android.util.Log;
 
@@ -17,8 +18,6 @@ import com.microsoft.connecteddevices.ConnectedDevicesAccessTokenInvalidatedEven
 import com.microsoft.connecteddevices.ConnectedDevicesAccount;
 import com.microsoft.connecteddevices.ConnectedDevicesAccountManager;
 import com.microsoft.connecteddevices.ConnectedDevicesNotificationRegistration;
-import com.microsoft.connecteddevices.ConnectedDevicesNotificationRegistrationResult;
-import com.microsoft.connecteddevices.ConnectedDevicesNotificationRegistrationStatus;
 import com.microsoft.connecteddevices.ConnectedDevicesAccountType;
 import com.microsoft.connecteddevices.ConnectedDevicesNotificationType;
 import com.microsoft.connecteddevices.ConnectedDevicesAddAccountResult;
@@ -35,10 +34,13 @@ import com.microsoft.connecteddevices.ConnectedDevicesAccount;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.TreeMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 /**
  * This is a singleton object which holds onto the app's ConnectedDevicesPlatform and handles account management.
@@ -48,63 +50,85 @@ public class ConnectedDevicesManager {
     private final String TAG = ConnectedDevicesManager.class.getName();
 
     private String currentAccountId;
-    private List<Account> mAccounts;
+    private final AccountRegistry mAccounts;
+
+    // Re-registrations of the same account within this window share one job, and at most this many accounts register at once
+    private static final long REGISTRATION_DEBOUNCE_MILLIS = 2000;
+    private static final int MAX_PARALLEL_REGISTRATIONS = 4;
+    private final RegistrationCoordinator mRegistrationCoordinator;
+
+    // Longest time an access token request from the SDK waits before it is completed with an error
+    private static final long ACCESS_TOKEN_DEADLINE_MILLIS = 30000;
+    private final AccessTokenDispatcher mAccessTokenDispatcher;
 
     private FcmNotificationReceiver mNotificationReceiver;
     private ConnectedDevicesPlatform mPlatform;
     private static ConnectedDevicesManager sConnectedDevicesManager;
+    private static AsyncOperation<ConnectedDevicesManager> sInitializeOperation;
+
+    // How long each startup step took, in the order they finished. Steps on parallel chains may interleave.
+    private final Map<String, Long> mStartupStepMillis = new LinkedHashMap<>();
     // endregion
 
     // region Constructors
     /**
-     * This is a singleton object which holds onto the app's ConnectedDevicesPlatform and handles account management. 
-     * @param context Application context
+     * This is a singleton object which holds onto the app's ConnectedDevicesPlatform and handles account management.
+     * The platform and accounts are set up by initializeAsync.
      */
-    private ConnectedDevicesManager(Context context) {
+    private ConnectedDevicesManager() {
         // Initialize list of known accounts
-        mAccounts = new ArrayList<Account>();
-        
-        // Create the NotificationReceiver
-        mNotificationReceiver = new FcmNotificationReceiver(context);
-
-        // Create Platform
-        mPlatform = new ConnectedDevicesPlatform(context);
-
-        // Create a final reference to the list of accounts
-        final List<Account> accounts = mAccounts;
+        mAccounts = new AccountRegistry();
 
-        // Subscribe to the AccessTokenRequested event
-        mPlatform.getAccountManager().accessTokenRequested().subscribe((accountManager, args) -> onAccessTokenRequested(accountManager, args, accounts));
+        // Coordinate re-registrations of the accounts
+        mRegistrationCoordinator = new RegistrationCoordinator(REGISTRATION_DEBOUNCE_MILLIS, MAX_PARALLEL_REGISTRATIONS);
 
-        // Subscribe to AccessTokenInvalidated event
-        mPlatform.getAccountManager().accessTokenInvalidated().subscribe((accountManager, args) -> onAccessTokenInvalidated(accountManager, args, accounts));
-
-        // Subscribe to NotificationRegistrationStateChanged event
-        mPlatform.getNotificationRegistrationManager().notificationRegistrationStateChanged().subscribe((notificationRegistrationManager, args) -> onNotificationRegistrationStateChanged(notificationRegistrationManager, args, accounts));
-
-        // Start the platform as we have subscribed to the events it can raise
-        mPlatform.start();
-
-        // Pull the accounts from our app's cache and synchronize the list with the apps cached by 
-        // ConnectedDevicesPlatform.AccountManager.
-        List<Account> deserializedAccounts = deserializeAccounts(context);
-
-        // Finally initialize the accounts. This will refresh registrations when needed, add missing accounts,
-        // and remove stale accounts from the ConnectedDevicesPlatform AccountManager. The AsyncOperation associated
-        // with all of this asynchronous work need not be waited on as any sub component work will be accomplished
-        // in the synchronous portion of the call. If your app needs to sequence when other apps can see this app's registration
-        // (i.e. when RemoteSystemAppRegistration PublishAsync completes) then it would be useful to use the AsyncOperation returned by
-        // prepareAccountsAsync
-        prepareAccounts(deserializedAccounts, context);
+        // Batch concurrent access token requests for the same account and scopes
+        mAccessTokenDispatcher = new AccessTokenDispatcher(ACCESS_TOKEN_DEADLINE_MILLIS);
     }
     // endregion
 
     // region public static methods
-    public static synchronized ConnectedDevicesManager getConnectedDevicesManager(Context context) {
-        if (sConnectedDevicesManager == null) {
-            sConnectedDevicesManager = new ConnectedDevicesManager(context);
+    /**
+     * Get the ConnectedDevicesManager, blocking until it is initialized. Prefer getConnectedDevicesManagerAsync on the UI thread.
+     * @param context Application context
+     * @return The initialized ConnectedDevicesManager
+     */
+    public static ConnectedDevicesManager getConnectedDevicesManager(Context context) {
+        AsyncOperation<ConnectedDevicesManager> initializeOperation = getConnectedDevicesManagerAsync(context);
+        try {
+            return initializeOperation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the ConnectedDevicesManager to initialize", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("ConnectedDevicesManager failed to initialize", e.getCause());
         }
-        return sConnectedDevicesManager;
+    }
+
+    /**
+     * Get the ConnectedDevicesManager without blocking. The first call starts initializing it in the background, and so does the first call after it failed.
+     * @param context Application context
+     * @return The async result for when the platform is started and the app's accounts are known
+     */
+    public static synchronized AsyncOperation<ConnectedDevicesManager> getConnectedDevicesManagerAsync(Context context) {
+        if (sInitializeOperation == null) {
+            sConnectedDevicesManager = new ConnectedDevicesManager();
+            final AsyncOperation<ConnectedDevicesManager> initializeOperation = sConnectedDevicesManager.initializeAsync(context.getApplicationContext());
+            sInitializeOperation = initializeOperation;
+
+            // If initialization fails, forget it so that the next call tries again rather than getting the same error
+            initializeOperation.whenComplete((ConnectedDevicesManager manager, Throwable throwable) -> {
+                if (throwable != null) {
+                    synchronized (ConnectedDevicesManager.class) {
+                        if (sInitializeOperation == initializeOperation) {
+                            sInitializeOperation = null;
+                        }
+                    }
+                }
+            });
+            return initializeOperation;
+        }
+        return sInitializeOperation;
     }
     // endregion
 
@@ -115,20 +139,37 @@ public class ConnectedDevicesManager {
      * @return The async result for when this operation completes
      */
     public synchronized AsyncOperation<Boolean> signInMsaAsync(final Activity activity) {
-        // Create a Signin helper Account with a client id for msa, a map of requested scopes to override, and the context
-        SigninHelperAccount signInHelper = new MSASigninHelperAccount(Secrets.MSA_CLIENT_ID, new ArrayMap<String, String[]>(), (Context)activity);
+        // Create a Signin helper Account with a client id for msa, the id of the account to load (null for the most recent one),
+        // a map of requested scopes to override, and the context. The saved session is loaded in the background to keep the UI thread free.
+        MSASigninHelperAccount signInHelper = new MSASigninHelperAccount(Secrets.MSA_CLIENT_ID, null, new ArrayMap<String, String[]>(), (Context)activity, true);
+
+        return signInHelper.getLoadOperation().thenComposeAsync((Boolean loaded) -> {
+            if (loaded) {
+                Log.i(TAG, "Already signed in with a MSA account");
+                // This helper is not kept, so let go of its share of the account's token cache
+                signInHelper.release();
+                return AsyncOperation.completedFuture(true);
+            }
 
-        if (signInHelper.isSignedIn()) {
-            Log.i(TAG, "Already signed in with a MSA account");
-            return AsyncOperation.completedFuture(true);
-        }
+            Log.i(TAG, "Signin in a MSA account");
 
-        Log.i(TAG, "Signin in a MSA account");
+            // Call signin, which may prompt the user to enter credentials or just retreive a cached token if they exist and are valid.
+            // Signing in shows a dialog, so it has to start on the UI thread.
+            AsyncOperation<ConnectedDevicesAccount> signInOperation = new AsyncOperation<>();
+            activity.runOnUiThread(() -> {
+                signInHelper.signIn(activity).whenComplete((ConnectedDevicesAccount account, Throwable throwable) -> {
+                    if (throwable != null) {
+                        signInOperation.completeExceptionally(throwable);
+                    } else {
+                        signInOperation.complete(account);
+                    }
+                });
+            });
 
-        // Call signin, which may prompt the user to enter credentials or just retreive a cached token if they exist and are valid
-        return signInHelper.signIn(activity).thenComposeAsync((ConnectedDevicesAccount account) -> {
-            // Prepare the account, adding it to the list of app's cached accounts is prepared successfully
-            return prepareAccountAsync(new Account(signInHelper, AccountRegistrationState.IN_APP_CACHE_ONLY, mPlatform), (Context)activity);
+            return signInOperation.thenComposeAsync((ConnectedDevicesAccount account) -> {
+                // Prepare the account, adding it to the list of app's cached accounts is prepared successfully
+                return prepareAccountAsync(new Account(signInHelper, AccountRegistrationState.IN_APP_CACHE_ONLY, mPlatform), (Context)activity);
+            });
         });
     }
 
@@ -140,6 +181,7 @@ public class ConnectedDevicesManager {
     public synchronized AsyncOperation<ConnectedDevicesAccount> logout(Account account, Activity activity) {
         // First remove this account from the list of "ready to go" accounts so it cannot be used while logging out
         mAccounts.remove(account);
+        mRegistrationCoordinator.cancel(account);
 
         // Now log out this account
         return account.logoutAsync(activity);
@@ -150,9 +192,6 @@ public class ConnectedDevicesManager {
      * @param token Notification token gained by the BroadcastReceiver
      */
     public synchronized void setNotificationRegistration(final String token) {
-        // Get the NotificationRegistrationManager from the platforfm
-        ConnectedDevicesNotificationRegistrationManager registrationManager = mPlatform.getNotificationRegistrationManager();
-
         // Create a NotificationRegistration obect to store all notification information
         ConnectedDevicesNotificationRegistration registration = new ConnectedDevicesNotificationRegistration();
         registration.setType(ConnectedDevicesNotificationType.GCM);
@@ -162,25 +201,6 @@ public class ConnectedDevicesManager {
 
         Log.i(TAG, "Completing the FcmNotificationReceiver operation with token: " + token);
 
-        // For each prepared account, register for notifications
-        for (Account account : mAccounts) {
-            registrationManager.registerAsync(account.getAccount(), registration)
-                .whenCompleteAsync((ConnectedDevicesNotificationRegistrationResult result, Throwable throwable) -> {
-                    // It would be a good idea for apps to take a look at the different statuses here and perhaps attempt some sort of remediation.
-                    // For example, web failure may indicate that a web service was temporarily in a bad state and retries may be successful.
-                    // NOTE: this approach was chosen rather than using exceptions to help separate "expected" / "retry-able" errors from real 
-                    // exceptions. This is similar to the checked vs unchecked exception disctinction except that Async operations don't support
-                    // checked exceptions.
-                    if (throwable != null) {
-                        Log.e(TAG, "RegistrationManager registration encountered " + throwable);
-                    } else if (result.getStatus() != ConnectedDevicesNotificationRegistrationStatus.SUCCESS) {
-                        Log.e(TAG, "Failed to perform notification registration for given account.");
-                    } else {
-                        Log.i(TAG, "Successfully performed notification registration for given account");
-                    }
-                });
-        }
-
         // The two cases of receiving a new notification token are:
         // 1. A notification registration is asked for and now it is available. In this case there is a pending promise that was made
         //    at the time of requesting the information. It now needs completed.
@@ -190,10 +210,11 @@ public class ConnectedDevicesManager {
         // that are in good standing.
         FcmNotificationReceiver.setNotificationRegistration(registration);
 
-        // For all the accounts which have been prepared successfully, perform Relay SDK registration
-        for (Account account : mAccounts) {
+        // For all the accounts which have been prepared successfully, perform notification and Relay SDK registration.
+        // Accounts whose registration already used this token are skipped.
+        for (Account account : mAccounts.getAll()) {
             if (account.getRegistrationState() == AccountRegistrationState.IN_APP_CACHE_AND_SDK_CACHE) {
-                account.registerAccountWithSdkAsync();
+                mRegistrationCoordinator.requestRegistration(account, false);
             }
         }
     }
@@ -207,34 +228,155 @@ public class ConnectedDevicesManager {
     }
 
     /**
-     * Get a list of "ready-to-go" accounts owned by this ConnectedDevicesManager.
+     * Get how long each startup step took, in the order the steps finished.
+     * @return Map of step name to duration in milliseconds
+     */
+    public synchronized Map<String, Long> getStartupStepMillis() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(mStartupStepMillis));
+    }
+
+    /**
+     * Get an immutable snapshot of the "ready-to-go" accounts owned by this ConnectedDevicesManager.
      * @return accounts
      */
     public List<Account> getAccounts() {
-        return mAccounts;
+        return mAccounts.getAll();
     }
     // endregion
 
     // region private instance methods
     /**
-     * Pull the accounts from our app's cache and synchronize the list with the 
-     * apps cached by ConnectedDevicesPlatform.AccountManager.
+     * Set up the platform and the app's accounts, off the calling thread. Only the steps that depend on each other are ordered:
+     *  - The notification receiver does not depend on anything.
+     *  - The platform is created, subscribed to, then started, so that no event it raises on start is missed.
+     *  - The app's saved sessions only depend on the app's own token cache, so they load while the platform starts.
+     *  - Accounts are reconciled with the SDK's cached accounts once both the platform and the sessions are ready.
+     * Each step's duration is logged, and available from getStartupStepMillis.
      * @param context Application context
-     * @return List of accounts from the app and SDK's cache
+     * @return The async result for when the platform is started and the app's accounts are known
+     */
+    private AsyncOperation<ConnectedDevicesManager> initializeAsync(final Context context) {
+        final long startMillis = SystemClock.elapsedRealtime();
+
+        AsyncOperation<Void> receiverOperation = AsyncOperation.supplyAsync(() -> {
+            long stepStartMillis = SystemClock.elapsedRealtime();
+
+            // Create the NotificationReceiver
+            mNotificationReceiver = new FcmNotificationReceiver(context);
+            recordStartupStep("Create notification receiver", stepStartMillis);
+            return null;
+        });
+
+        AsyncOperation<Void> platformOperation = AsyncOperation.supplyAsync(() -> {
+            long stepStartMillis = SystemClock.elapsedRealtime();
+
+            // Create Platform
+            mPlatform = new ConnectedDevicesPlatform(context);
+            stepStartMillis = recordStartupStep("Create platform", stepStartMillis);
+
+            // Create a final reference to the registry of accounts
+            final AccountRegistry accounts = mAccounts;
+
+            // Subscribe to the AccessTokenRequested event
+            mPlatform.getAccountManager().accessTokenRequested().subscribe((accountManager, args) -> onAccessTokenRequested(accountManager, args, accounts));
+
+            // Subscribe to AccessTokenInvalidated event
+            mPlatform.getAccountManager().accessTokenInvalidated().subscribe((accountManager, args) -> onAccessTokenInvalidated(accountManager, args, accounts));
+
+            // Subscribe to NotificationRegistrationStateChanged event
+            mPlatform.getNotificationRegistrationManager().notificationRegistrationStateChanged().subscribe((notificationRegistrationManager, args) -> onNotificationRegistrationStateChanged(notificationRegistrationManager, args, accounts));
+            stepStartMillis = recordStartupStep("Subscribe to platform events", stepStartMillis);
+
+            // Start the platform as we have subscribed to the events it can raise
+            mPlatform.start();
+            recordStartupStep("Start platform", stepStartMillis);
+            return null;
+        });
+
+        AsyncOperation<List<SigninHelperAccount>> signInHelpersOperation = AsyncOperation.supplyAsync(() -> {
+            long stepStartMillis = SystemClock.elapsedRealtime();
+            List<SigninHelperAccount> signInHelpers = loadSignedInHelpers(context);
+            recordStartupStep("Load saved sessions", stepStartMillis);
+            return signInHelpers;
+        });
+
+        return AsyncOperation.allOf(receiverOperation, platformOperation, signInHelpersOperation).thenApplyAsync((Void v) -> {
+            long stepStartMillis = SystemClock.elapsedRealtime();
+
+            // Synchronize the app's cached accounts with the ones cached by ConnectedDevicesPlatform.AccountManager.
+            List<Account> deserializedAccounts = deserializeAccounts(signInHelpersOperation.get());
+            stepStartMillis = recordStartupStep("Reconcile accounts", stepStartMillis);
+
+            // Finally initialize the accounts. This will refresh registrations when needed, add missing accounts,
+            // and remove stale accounts from the ConnectedDevicesPlatform AccountManager. The AsyncOperation associated
+            // with all of this asynchronous work need not be waited on as any sub component work will be accomplished
+            // in the synchronous portion of the call. If your app needs to sequence when other apps can see this app's registration
+            // (i.e. when RemoteSystemAppRegistration PublishAsync completes) then it would be useful to use the AsyncOperation returned by
+            // prepareAccountsAsync
+            prepareAccounts(deserializedAccounts, context);
+            recordStartupStep("Start preparing accounts", stepStartMillis);
+
+            Log.i(TAG, "ConnectedDevicesManager initialized in " + (SystemClock.elapsedRealtime() - startMillis) + "ms");
+            return this;
+        });
+    }
+
+    /**
+     * Record how long a startup step took.
+     * @param step Name of the step
+     * @param stepStartMillis Time the step started, from SystemClock.elapsedRealtime
+     * @return Time the step finished, to start timing the next step from
+     */
+    private long recordStartupStep(String step, long stepStartMillis) {
+        long nowMillis = SystemClock.elapsedRealtime();
+        long durationMillis = nowMillis - stepStartMillis;
+        synchronized (this) {
+            mStartupStepMillis.put(step, durationMillis);
+        }
+
+        Log.i(TAG, "Startup step \"" + step + "\" took " + durationMillis + "ms");
+        return nowMillis;
+    }
+
+    /**
+     * Load the sessions of the accounts that signed in to the app.
+     * @param context Application context
+     * @return Sign-in helpers for the accounts whose session could be loaded
      */
-    private List<Account> deserializeAccounts(Context context) {
-        // Since our helper lib can only cache 1 app at a time, we create sign-in helper,
-        // which does user account and access token management for us. Takes three parameters:
-        // a client id for msa, a map of requested auto scopes to override, and the context
-        SigninHelperAccount signInHelper = new MSASigninHelperAccount(Secrets.MSA_CLIENT_ID, new ArrayMap<String, String[]>(), context);
+    private List<SigninHelperAccount> loadSignedInHelpers(Context context) {
+        // Our helper lib caches tokens for each account that signed in to the app, so create a sign-in helper for each of them,
+        // which does user account and access token management for us. Takes five parameters: a client id for msa, the id of the account
+        // to load, a map of requested auto scopes to override, the context, and whether to load the account's session in the background.
+        // All the helpers are created first, so that their sessions load in parallel.
+        List<SigninHelperAccount> signInHelpers = new ArrayList<>();
+        for (String accountId : MSASigninHelperAccount.getSavedAccountIds(Secrets.MSA_CLIENT_ID, context)) {
+            signInHelpers.add(new MSASigninHelperAccount(Secrets.MSA_CLIENT_ID, accountId, new ArrayMap<String, String[]>(), context, true));
+        }
+
+        // Only keep accounts whose session could be loaded, i.e. whose saved tokens have not expired.
+        // This waits for each account's session to finish loading.
+        List<SigninHelperAccount> signedInHelpers = new ArrayList<>();
+        for (SigninHelperAccount signInHelper : signInHelpers) {
+            if (signInHelper.isSignedIn()) {
+                signedInHelpers.add(signInHelper);
+            }
+        }
+
+        return signedInHelpers;
+    }
 
+    /**
+     * Synchronize the app's signed in accounts with the accounts cached by ConnectedDevicesPlatform.AccountManager.
+     * @param signInHelpers Sign-in helpers for the app's signed in accounts
+     * @return List of accounts from the app and SDK's cache
+     */
+    private List<Account> deserializeAccounts(List<SigninHelperAccount> signInHelpers) {
         // Get all of the ConnectedDevicesPlatform's added accounts
         List<ConnectedDevicesAccount> sdkCachedAccounts = mPlatform.getAccountManager().getAccounts();
 
         List<Account> returnAccounts = new ArrayList<Account>();
 
-        // If there is a signed in account in the app's cache, find it exists in the SDK's cache
-        if (signInHelper.isSignedIn()) {
+        for (SigninHelperAccount signInHelper : signInHelpers) {
             // Check if the account is also present in ConnectedDevicesPlatform.AccountManager.
             ConnectedDevicesAccount sdkCachedAccount = findFirst(sdkCachedAccounts, (acc) -> accountsMatch(signInHelper.getAccount(), acc));
 
@@ -320,7 +462,8 @@ public class ConnectedDevicesManager {
     }
 
     /**
-     * Attempt to prepare the account. If the account was prepared successfully, add it to the list of "ready to use" accounts.
+     * Attempt to prepare the account. If the account was prepared successfully, add it to the list of "ready to use" accounts,
+     * otherwise let go of its sign-in helper.
      * @param context Application context
      * @return AsyncOperation with the exception captured
      */
@@ -331,10 +474,11 @@ public class ConnectedDevicesManager {
         mAccounts.add(account);
 
         // Prepare the account, removing it from the list of accounts if it failed
-        return account.prepareAccountAsync(context).thenComposeAsync((Boolean success) -> {
+        return account.prepareAccountAsync(context, mRegistrationCoordinator).thenComposeAsync((Boolean success) -> {
             // If an exception is raised or we gracefully fail to prepare the account, remove it
             if (!success) {
                 mAccounts.remove(account);
+                account.releaseSignInHelper();
                 Log.w(TAG, "Removed account: " + account.getAccount().getId() + " from the list of ready-to-go accounts as it failed to be prepared.");
             } else {
                 Log.i(TAG, "Account: " + account.getAccount().getId() + " is prepared!.");
@@ -344,6 +488,7 @@ public class ConnectedDevicesManager {
             return AsyncOperation.completedFuture(success);
         }).exceptionally((Throwable throwable) -> {
             mAccounts.remove(account);
+            account.releaseSignInHelper();
             Log.e(TAG, "Removed account: " + account.getAccount().getId() + " from the list of ready-to-go accounts as an exception was encountered", throwable);
             // Return the account preparation was not successful
             return false;
@@ -354,14 +499,13 @@ public class ConnectedDevicesManager {
      * This event is fired when there is a need to request a token. This event should be subscribed and ready to respond before any request is sent out.
      * @param sender ConnectedDevicesAccountManager which is making the request
      * @param args Contains arguments for the event
-     * @param accounts List of accounts to search for
+     * @param accounts Registry of accounts to search
      */
-    private void onAccessTokenRequested(ConnectedDevicesAccountManager sender, ConnectedDevicesAccessTokenRequestedEventArgs args, List<Account> accounts) {
+    private void onAccessTokenRequested(ConnectedDevicesAccountManager sender, ConnectedDevicesAccessTokenRequestedEventArgs args, AccountRegistry accounts) {
         ConnectedDevicesAccessTokenRequest request = args.getRequest();
-        List<String> scopes = request.getScopes();
 
-        // Compare the app cached account to find a match in the sdk cached accounts
-        Account account = findFirst(accounts, acc -> accountsMatch(request.getAccount(), acc.getAccount()));
+        // Look up the app cached account matching the sdk cached account
+        Account account = accounts.find(request.getAccount());
 
         // We always need to complete the request, even if a matching account is not found
         if (account == null) {
@@ -370,14 +514,8 @@ public class ConnectedDevicesManager {
             return;
         }
 
-        // Complete the request with a token
-        account.getAccessTokenAsync(scopes)
-            .thenAcceptAsync((String token) -> {
-                request.completeWithAccessToken(token);
-            }).exceptionally(throwable -> {
-                request.completeWithErrorMessage("The Account could not return a token with those scopes");
-                return null;
-            });
+        // Complete the request with a token, sharing the fetch with any other request in flight for the same account and scopes
+        mAccessTokenDispatcher.dispatch(account, request);
     }
 
     /**
@@ -386,9 +524,9 @@ public class ConnectedDevicesManager {
      * If access token in invalidated, refresh token and renew access token.
      * @param sender ConnectedDevicesAccountManager which is making the request
      * @param args Contains arguments for the event
-     * @param accounts List of accounts to search for
+     * @param accounts Registry of accounts to search
      */
-    private void onAccessTokenInvalidated(ConnectedDevicesAccountManager sender, ConnectedDevicesAccessTokenInvalidatedEventArgs args, List<Account> accounts) {
+    private void onAccessTokenInvalidated(ConnectedDevicesAccountManager sender, ConnectedDevicesAccessTokenInvalidatedEventArgs args, AccountRegistry accounts) {
         Log.i(TAG, "Token invalidated for account: " + args.getAccount().getId());
     }
 
@@ -396,9 +534,9 @@ public class ConnectedDevicesManager {
      * Event for when the registration state changes for a given account.
      * @param sender ConnectedDevicesNotificationRegistrationManager which is making the request
      * @param args Contains arguments for the event
-     * @param accounts List of accounts to search for
+     * @param accounts Registry of accounts to search
      */
-    private void onNotificationRegistrationStateChanged(ConnectedDevicesNotificationRegistrationManager sender, ConnectedDevicesNotificationRegistrationStateChangedEventArgs args, List<Account> accounts) {
+    private void onNotificationRegistrationStateChanged(ConnectedDevicesNotificationRegistrationManager sender, ConnectedDevicesNotificationRegistrationStateChangedEventArgs args, AccountRegistry accounts) {
         // If notification registration state is expiring or expired, re-register for account again.
         ConnectedDevicesNotificationRegistrationState state = args.getState();
         switch (args.getState()) {
@@ -414,11 +552,11 @@ public class ConnectedDevicesManager {
                  // Because the notificaiton registration is expiring, the per account registration work needs to be kicked off again.
                  // This means registering with the NotificationRegistrationManager as well as any sub component work like RemoteSystemAppRegistration.
                 Log.i(TAG, "Notification " + args.getState() + " for account: " + args.getAccount().getId());
-                Account account = findFirst(accounts, acc -> accountsMatch(args.getAccount(), acc.getAccount()));
+                Account account = accounts.find(args.getAccount());
 
-                // If the account has been prepared for use then re-register the account with SDK
+                // If the account has been prepared for use then re-register the account with SDK, even though nothing changed on our side
                 if (account != null && account.getRegistrationState() == AccountRegistrationState.IN_APP_CACHE_AND_SDK_CACHE) {
-                    account.registerAccountWithSdkAsync();
+                    mRegistrationCoordinator.requestRegistration(account, true);
                 }
                 break;
             }
@@ -35,8 +35,8 @@ public class FcmNotificationReceiver extends BroadcastReceiver {
      * @param registration
      */
     public static synchronized void setNotificationRegistration(ConnectedDevicesNotificationRegistration registration) {
-        // Create the registration operation if it has not been requested already
-        if (sNotificationRegistrationOperation == null) {
+        // Create the registration operation if it has not been requested already, or replace it if it already holds an older token
+        if (sNotificationRegistrationOperation == null || sNotificationRegistrationOperation.isDone()) {
             sNotificationRegistrationOperation = new AsyncOperation<>();
         }
 
@@ -79,7 +79,11 @@ public class FcmNotificationReceiver extends BroadcastReceiver {
         } else {
             Log.i(TAG, "FcmNotificationReceiver gained the token: " + token);
 
-            ConnectedDevicesManager.getConnectedDevicesManager(context).setNotificationRegistration(token);
+            // The ConnectedDevicesManager may still be starting up, possibly because it is the one that created this receiver
+            final String registrationToken = token;
+            ConnectedDevicesManager.getConnectedDevicesManagerAsync(context).thenAcceptAsync((ConnectedDevicesManager manager) -> {
+                manager.setNotificationRegistration(registrationToken);
+            });
         }
 
         mContext.startService(new Intent(mContext, SampleFCMListenerService.class));
@@ -49,7 +49,8 @@ public class MainActivity extends AppCompatActivity {
     private ModuleSelectFragment mModuleSelectFragment;
     private UserActivityFragment mUserActivityFragment;
     private HostingFragment mHostingFragment;
-    private ConnectedDevicesManager mConnectedDevicesManager;
+    // Set once the ConnectedDevicesManager finishes initializing in the background, read from the UI thread
+    private volatile ConnectedDevicesManager mConnectedDevicesManager;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -119,11 +120,13 @@ public class MainActivity extends AppCompatActivity {
             };
         mNavigationDrawer.addDrawerListener(actionBarDrawerToggle);
 
-        // Create the ConnectedDevicesManager
-        mConnectedDevicesManager = ConnectedDevicesManager.getConnectedDevicesManager((Context)this);
+        // Create the ConnectedDevicesManager in the background, so that starting the platform does not hold up the UI thread
+        ConnectedDevicesManager.getConnectedDevicesManagerAsync((Context)this).thenComposeAsync((ConnectedDevicesManager manager) -> {
+            mConnectedDevicesManager = manager;
 
-        // Sign the user in, which may or may not require UI interaction
-        mConnectedDevicesManager.signInMsaAsync(this).thenAcceptAsync((success) -> {
+            // Sign the user in, which may or may not require UI interaction
+            return mConnectedDevicesManager.signInMsaAsync(this);
+        }).thenAcceptAsync((success) -> {
             if (success) {
                 // Initialize the UserActivity Feed
                 getUserActivityFragment().initializeUserActivityFeed();
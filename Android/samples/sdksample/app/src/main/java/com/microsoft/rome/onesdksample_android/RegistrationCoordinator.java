@@ -0,0 +1,181 @@
+//
+//  Copyright (c) Microsoft Corporation. All rights reserved.
+//
+
+package com.microsoft.rome.onesdksample_android;
+
+import android.util.Log;
+
+import com.microsoft.connecteddevices.AsyncOperation;
+import com.microsoft.connecteddevices.ConnectedDevicesAccount;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Funnels every reason to register an account (preparing it, a new notification token, an expiring registration, ...) into at most one
+ * pending registration job per account. Requests for an account arriving within a short window of each other share one job,
+ * and jobs for different accounts run in parallel, up to a cap. Each job calls Account.registerAccountWithSdkAsync,
+ * which itself skips the network work if the notification token and registration are unchanged since they last succeeded.
+ */
+public class RegistrationCoordinator {
+    // region Member Variables
+    private final String TAG = RegistrationCoordinator.class.getName();
+
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final long mDebounceMillis;
+    private final int mMaxParallelJobs;
+
+    // All guarded by this
+    private final Map<String, Job> mPendingJobs = new HashMap<>(); // Jobs not started yet, one per account
+    private final Deque<Job> mReadyJobs = new ArrayDeque<>();      // Pending jobs whose window is over, in the order they became ready
+    private final Set<String> mRunningAccounts = new HashSet<>();  // Accounts with a job running
+    // endregion
+
+    /**
+     * Private helper class - a registration job for one account.
+     */
+    private static final class Job {
+        final String mKey;
+        final AsyncOperation<Boolean> mOperation = new AsyncOperation<>();
+        Account mAccount;
+        boolean mForce;
+
+        Job(String key, Account account, boolean force) {
+            mKey = key;
+            mAccount = account;
+            mForce = force;
+        }
+    }
+
+    // region Constructors
+    /**
+     * @param debounceMillis How long to wait after the first request for an account, so that requests arriving meanwhile share its job
+     * @param maxParallelJobs Max number of accounts registering at the same time
+     */
+    public RegistrationCoordinator(long debounceMillis, int maxParallelJobs) {
+        mDebounceMillis = debounceMillis;
+        mMaxParallelJobs = maxParallelJobs;
+    }
+    // endregion
+
+    // region public instance methods
+    /**
+     * Ask for the account to be registered. Joins the account's pending job if there is one.
+     * @param account Account to register
+     * @param force Whether to register even if nothing changed since the last successful registration
+     * @return The async result for when the job this request ended up in completes
+     */
+    public synchronized AsyncOperation<Boolean> requestRegistration(Account account, boolean force) {
+        String key = getKey(account.getAccount());
+        Job job = mPendingJobs.get(key);
+        if (job != null) {
+            Log.v(TAG, "Registration for account: " + account.getAccount().getId() + " is already pending, joining it");
+            job.mAccount = account;
+            job.mForce |= force;
+            return job.mOperation;
+        }
+
+        final Job newJob = new Job(key, account, force);
+        mPendingJobs.put(key, newJob);
+        mExecutor.schedule(() -> onJobReady(newJob), mDebounceMillis, TimeUnit.MILLISECONDS);
+        return newJob.mOperation;
+    }
+
+    /**
+     * Drop the account's pending job, if any, e.g. because the account is logging out. A job already running is left to finish.
+     * @param account Account whose job to drop
+     */
+    public void cancel(Account account) {
+        Job job;
+        synchronized (this) {
+            job = mPendingJobs.remove(getKey(account.getAccount()));
+            if (job == null) {
+                return;
+            }
+            mReadyJobs.remove(job);
+        }
+
+        job.mOperation.complete(false);
+    }
+    // endregion
+
+    // region private instance methods
+    private void onJobReady(Job job) {
+        synchronized (this) {
+            if (mPendingJobs.get(job.mKey) != job) {
+                return; // Cancelled
+            }
+            mReadyJobs.add(job);
+        }
+
+        startReadyJobs();
+    }
+
+    /**
+     * Start as many ready jobs as the cap allows. A job for an account that is still registering waits for that to finish.
+     */
+    private void startReadyJobs() {
+        List<Job> jobsToStart = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Job> iterator = mReadyJobs.iterator();
+            while (iterator.hasNext() && mRunningAccounts.size() < mMaxParallelJobs) {
+                Job job = iterator.next();
+                if (mRunningAccounts.contains(job.mKey)) {
+                    continue;
+                }
+
+                iterator.remove();
+                mPendingJobs.remove(job.mKey);
+                mRunningAccounts.add(job.mKey);
+                jobsToStart.add(job);
+            }
+        }
+
+        for (Job job : jobsToStart) {
+            runJob(job);
+        }
+    }
+
+    private void runJob(final Job job) {
+        Log.i(TAG, "Registering account: " + job.mAccount.getAccount().getId() + (job.mForce ? " (forced)" : ""));
+
+        AsyncOperation<Boolean> registrationOperation;
+        try {
+            registrationOperation = job.mAccount.registerAccountWithSdkAsync(job.mForce);
+        } catch (RuntimeException e) {
+            registrationOperation = new AsyncOperation<>();
+            registrationOperation.completeExceptionally(e);
+        }
+
+        registrationOperation.whenComplete((Boolean success, Throwable throwable) -> {
+            synchronized (this) {
+                mRunningAccounts.remove(job.mKey);
+            }
+
+            if (throwable != null) {
+                Log.e(TAG, "Registration for account: " + job.mAccount.getAccount().getId() + " encountered " + throwable);
+                job.mOperation.completeExceptionally(throwable);
+            } else {
+                job.mOperation.complete(success);
+            }
+
+            startReadyJobs();
+        });
+    }
+
+    private static String getKey(ConnectedDevicesAccount account) {
+        return account.getType() + ":" + account.getId();
+    }
+    // endregion
+}
@@ -36,10 +36,11 @@ public class SampleFCMListenerService extends FirebaseMessagingService {
             return;
         }
 
-        // Get a ConnectedDevicesPlatform to give the notification to
-        ConnectedDevicesPlatform platform = ConnectedDevicesManager.getConnectedDevicesManager(getApplicationContext()).getPlatform();
-
-        platform.processNotificationAsync(notification).thenAcceptAsync((Void v) -> {
+        // Get a ConnectedDevicesPlatform to give the notification to, once the ConnectedDevicesManager is ready
+        ConnectedDevicesManager.getConnectedDevicesManagerAsync(getApplicationContext()).thenComposeAsync((ConnectedDevicesManager manager) -> {
+            ConnectedDevicesPlatform platform = manager.getPlatform();
+            return platform.processNotificationAsync(notification);
+        }).thenAcceptAsync((Void v) -> {
             // The notification has finished being processed. The app is ready to
             // be shutdown or if woken from the background service, this is where
             // you would shutdown your background service early to be a good citizen.
@@ -17,6 +17,7 @@ import android.widget.TextView;
 
 import com.microsoft.connecteddevices.AsyncOperation;
 import com.microsoft.connecteddevices.ConnectedDevicesAccount;
+import com.microsoft.connecteddevices.ConnectedDevicesPlatform;
 import com.microsoft.connecteddevices.EventListener;
 import com.microsoft.connecteddevices.userdata.useractivities.UserActivity;
 import com.microsoft.connecteddevices.userdata.useractivities.UserActivityChannel;
@@ -84,8 +85,8 @@ public class UserActivityFragment extends BaseFragment implements View.OnClickLi
     private UserDataFeed mUserDataFeed;
     private String mStatusText;
 
-    private UserDataFeed getUserDataFeed(ConnectedDevicesAccount account, List<UserDataFeedSyncScope> scopes, EventListener<UserDataFeed, UserDataFeedSyncStatusChangedEventArgs> listener) {
-        UserDataFeed dataFeed = UserDataFeed.getForAccount(account, ConnectedDevicesManager.getConnectedDevicesManager(getActivity()).getPlatform(), Secrets.APP_HOST_NAME);
+    private UserDataFeed getUserDataFeed(ConnectedDevicesAccount account, ConnectedDevicesPlatform platform, List<UserDataFeedSyncScope> scopes, EventListener<UserDataFeed, UserDataFeedSyncStatusChangedEventArgs> listener) {
+        UserDataFeed dataFeed = UserDataFeed.getForAccount(account, platform, Secrets.APP_HOST_NAME);
         dataFeed.syncStatusChanged().subscribe(listener);
         dataFeed.subscribeToSyncScopesAsync(scopes).whenCompleteAsync((success, throwable) -> {
             if (success) {
@@ -95,49 +96,50 @@ public class UserActivityFragment extends BaseFragment implements View.OnClickLi
         return dataFeed;
     }
 
-    public void initializeUserActivityFeed() {
+    public AsyncOperation<Void> initializeUserActivityFeed() {
         mStatusText = getStringValue(R.string.status_activities_initialize);
         Log.d(TAG, mStatusText);
 
-        try {
-            // Step #1
-            // get the UserDataFeed for the signed in account
-            ConnectedDevicesManager manager = ConnectedDevicesManager.getConnectedDevicesManager(getActivity());
-            List<Account> accounts = manager.getAccounts();
-
-            // Ensure we have an account to use
-            if (accounts.size() > 0) {
-                ConnectedDevicesAccount account = accounts.get(0).getAccount();
-
-                List<UserDataFeedSyncScope> scopes =  Arrays.asList(UserActivityChannel.getSyncScope());
-                mUserDataFeed = getUserDataFeed(account, scopes, (userDataFeed, args) -> {
-                    if (userDataFeed.getSyncStatus() == UserDataFeedSyncStatus.SYNCHRONIZED) {
-                        mStatusText = getStringValue(R.string.status_activities_initialize_complete);
-                        Log.e(TAG, mStatusText);
-                    } else {
-                        mStatusText = getStringValue(R.string.status_activities_initialize_failed);
-                        Log.e(TAG, mStatusText);
-                    }
-                });
-
-                mStatusText = getStringValue(R.string.status_activities_get_channel);
-                Log.d(TAG, mStatusText);
-
-                // Step #2
-                // create a UserActivityChannel on the UserDataFeed
-                mActivityChannel = new UserActivityChannel(mUserDataFeed);
+        return ConnectedDevicesManager.getConnectedDevicesManagerAsync(getActivity()).thenAccept((ConnectedDevicesManager manager) -> {
+            try {
+                // Step #1
+                // get the UserDataFeed for the signed in account
+                List<Account> accounts = manager.getAccounts();
+
+                // Ensure we have an account to use
+                if (accounts.size() > 0) {
+                    ConnectedDevicesAccount account = accounts.get(0).getAccount();
+
+                    List<UserDataFeedSyncScope> scopes =  Arrays.asList(UserActivityChannel.getSyncScope());
+                    mUserDataFeed = getUserDataFeed(account, manager.getPlatform(), scopes, (userDataFeed, args) -> {
+                        if (userDataFeed.getSyncStatus() == UserDataFeedSyncStatus.SYNCHRONIZED) {
+                            mStatusText = getStringValue(R.string.status_activities_initialize_complete);
+                            Log.e(TAG, mStatusText);
+                        } else {
+                            mStatusText = getStringValue(R.string.status_activities_initialize_failed);
+                            Log.e(TAG, mStatusText);
+                        }
+                    });
+
+                    mStatusText = getStringValue(R.string.status_activities_get_channel);
+                    Log.d(TAG, mStatusText);
+
+                    // Step #2
+                    // create a UserActivityChannel on the UserDataFeed
+                    mActivityChannel = new UserActivityChannel(mUserDataFeed);
+
+                    mStatusText = getStringValue(R.string.status_activities_get_channel_success);
+                } else {
+                    mStatusText = "Must have an active account to publish activities!";
+                }
 
-                mStatusText = getStringValue(R.string.status_activities_get_channel_success);
-            } else {
-                mStatusText = "Must have an active account to publish activities!";
+                Log.d(TAG, mStatusText);
+            } catch (Exception e) {
+                e.printStackTrace();
+                mStatusText = getStringValue(R.string.status_activities_get_channel_failed);
+                Log.e(TAG, mStatusText);
             }
-
-            Log.d(TAG, mStatusText);
-        } catch (Exception e) {
-            e.printStackTrace();
-            mStatusText = getStringValue(R.string.status_activities_get_channel_failed);
-            Log.e(TAG, mStatusText);
-        }
+        });
     }
 
     @Nullable
@@ -156,6 +158,31 @@ public class UserActivityFragment extends BaseFragment implements View.OnClickLi
         return activity;
     }
 
+    private void publishNewUserActivity() {
+        // Step #2
+        // Create the UserActivity
+        mActivity = createUserActivity(mActivityChannel, mActivityId.getText().toString());
+
+        // Step #3
+        // Save (publish) the UserActivity
+        // set the properties of the UserActivity
+        // Display Text will be shown when the UserActivity is viewed on other devices
+        mActivity.getVisualElements().setDisplayText(mDisplayText.getText().toString());
+        mActivity.getVisualElements().getAttribution().setIconUri(mActivityIconUri.getText().toString());
+        // ActivationURI will determine what is launched when your UserActivity is activated from other devices
+        mActivity.setActivationUri(mActivationUri.getText().toString());
+
+        // Saves & publishes the activity
+        AsyncOperation<Void> operation = mActivity.saveAsync();
+        operation.whenCompleteAsync((aVoid, throwable) -> {
+            if (throwable != null) {
+                setStatus(R.string.status_activities_save_activity_failed);
+            } else {
+                setStatus(R.string.status_activities_save_activity_success);
+            }
+        });
+    }
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View rootView = inflater.inflate(R.layout.fragment_useractivity, container, false);
@@ -205,32 +232,9 @@ public class UserActivityFragment extends BaseFragment implements View.OnClickLi
                 mStartButton.setText(R.string.button_start_activity_session);
             });
 
-            // Ensure ActivityChannel has been initialized
-            if (mActivityChannel == null) {
-                initializeUserActivityFeed();
-            }
-            // Step #2
-            // Create the UserActivity
-            mActivity = createUserActivity(mActivityChannel, mActivityId.getText().toString());
-
-            // Step #3
-            // Save (publish) the UserActivity
-            // set the properties of the UserActivity
-            // Display Text will be shown when the UserActivity is viewed on other devices
-            mActivity.getVisualElements().setDisplayText(mDisplayText.getText().toString());
-            mActivity.getVisualElements().getAttribution().setIconUri(mActivityIconUri.getText().toString());
-            // ActivationURI will determine what is launched when your UserActivity is activated from other devices
-            mActivity.setActivationUri(mActivationUri.getText().toString());
-
-            // Saves & publishes the activity
-            AsyncOperation<Void> operation = mActivity.saveAsync();
-            operation.whenCompleteAsync((aVoid, throwable) -> {
-                if (throwable != null) {
-                    setStatus(R.string.status_activities_save_activity_failed);
-                } else {
-                    setStatus(R.string.status_activities_save_activity_success);
-                }
-            });
+            // Ensure ActivityChannel has been initialized, then publish the activity on the UI thread, after the values above are set
+            AsyncOperation<Void> feedOperation = (mActivityChannel == null) ? initializeUserActivityFeed() : AsyncOperation.completedFuture(null);
+            feedOperation.thenAccept((Void v) -> getActivity().runOnUiThread(() -> publishNewUserActivity()));
         }
         // Start activity button clicked
         else if (mStartButton.equals(v)) {
@@ -34,9 +34,14 @@ import com.microsoft.connecteddevices.ConnectedDevicesAccount;
 import com.microsoft.connecteddevices.ConnectedDevicesAccountType;
 
 import java.lang.InterruptedException;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Sign in helper that provides integration to the ConnectedDevicesAccountManager for AAD using the ADAL library.
@@ -62,8 +67,24 @@ public final class AADSigninHelperAccount implements SigninHelperAccount {
 
     private static final String LOGIN_URL = "https://login.microsoftonline.com/common";
     private static final String GRAPH_URL = "https://graph.windows.net";
+
+    // How long before expiry to stop serving an access token from memory, and go back to ADAL for a fresh one
+    private static final long ACCESS_TOKEN_CLOSE_TO_EXPIRY_MILLIS = TimeUnit.MINUTES.toMillis(5);
     // endregion
 
+    /**
+     * Private helper class - an access token held in memory, with the time after which ADAL should be asked again.
+     */
+    private static final class CachedAccessToken {
+        final String mToken;
+        final long mCloseToExpirationMillis;
+
+        CachedAccessToken(String token, long closeToExpirationMillis) {
+            mToken = token;
+            mCloseToExpirationMillis = closeToExpirationMillis;
+        }
+    }
+
     // region Member Variables
     private final String mClientId;
     private final String mRedirectUri;
@@ -71,6 +92,15 @@ public final class AADSigninHelperAccount implements SigninHelperAccount {
 
     private ConnectedDevicesAccount mAccount; // Initialized when signed in
 
+    // Access tokens ADAL returned, by resource, so that repeated requests skip ADAL's storage reads and crypto
+    private final Map<String, CachedAccessToken> mCachedAccessTokens = new ConcurrentHashMap<>();
+    // Token acquisitions in flight, by resource. Concurrent requests for the same resource share one acquisition.
+    private final Map<String, AsyncOperation<String>> mPendingAccessTokens = new HashMap<>();
+
+    private final AtomicLong mCacheHitCount = new AtomicLong();
+    private final AtomicLong mSilentRequestCount = new AtomicLong();
+    private final AtomicLong mInteractiveFallbackCount = new AtomicLong();
+
     private long mNextListenerId = 1L;
     // endregion
 
@@ -182,17 +212,50 @@ public final class AADSigninHelperAccount implements SigninHelperAccount {
         return signOutOperation;
     }
 
+    /**
+     * Returns an access token for the resource given as the first scope.
+     * A token ADAL returned earlier is served from memory until it is close to expiry, without taking any lock.
+     * Otherwise the token is acquired silently through ADAL, joining an acquisition already in flight for the same resource.
+     */
     @Override
-    public synchronized AsyncOperation<String> getAccessTokenAsync(final List<String> scopes) {
-        if (!isSignedIn()) {
-            throw new IllegalStateException("AADSigninHelperAccount: Not currently signed in!");
+    public AsyncOperation<String> getAccessTokenAsync(final List<String> scopes) {
+        final String scope = scopes.get(0);
+
+        // Tokens are dropped from memory on sign out, so a cached token means the account is still signed in
+        CachedAccessToken cachedAccessToken = mCachedAccessTokens.get(scope);
+        if (cachedAccessToken != null && cachedAccessToken.mCloseToExpirationMillis > System.currentTimeMillis()) {
+            mCacheHitCount.incrementAndGet();
+            SigninHelperMetrics.reportAccessTokenCacheHit(scope);
+            return AsyncOperation.completedFuture(cachedAccessToken.mToken);
         }
 
-        final AsyncOperation<String> getAccessTokenOperation = new AsyncOperation<>();
-        final String scope = scopes.get(0);
+        SigninHelperMetrics.reportAccessTokenCacheMiss(scope);
+
+        synchronized (this) {
+            if (!isSignedIn()) {
+                throw new IllegalStateException("AADSigninHelperAccount: Not currently signed in!");
+            }
+
+            AsyncOperation<String> pendingAccessToken = mPendingAccessTokens.get(scope);
+            if (pendingAccessToken != null) {
+                return pendingAccessToken;
+            }
 
-        acquireTokenSilent(scope, new AcquireTokenHandler(scope, getAccessTokenOperation));
-        return getAccessTokenOperation;
+            final AsyncOperation<String> getAccessTokenOperation = new AsyncOperation<>();
+            mPendingAccessTokens.put(scope, getAccessTokenOperation);
+            getAccessTokenOperation.whenComplete(new AsyncOperation.ResultBiConsumer<String, Throwable>() {
+                @Override
+                public void accept(String token, Throwable throwable) {
+                    synchronized (AADSigninHelperAccount.this) {
+                        mPendingAccessTokens.remove(scope);
+                    }
+                }
+            });
+
+            mSilentRequestCount.incrementAndGet();
+            acquireTokenSilent(scope, new AcquireTokenHandler(scope, getAccessTokenOperation));
+            return getAccessTokenOperation;
+        }
     }
 
     @Override
@@ -210,6 +273,27 @@ public final class AADSigninHelperAccount implements SigninHelperAccount {
     public String getClientId() {
         return mClientId;
     }
+
+    /**
+     * Returns how many access token requests were served from memory.
+     */
+    public long getCacheHitCount() {
+        return mCacheHitCount.get();
+    }
+
+    /**
+     * Returns how many access token requests went to ADAL's silent acquisition.
+     */
+    public long getSilentRequestCount() {
+        return mSilentRequestCount.get();
+    }
+
+    /**
+     * Returns how many silent acquisitions had to fall back to an interactive prompt.
+     */
+    public long getInteractiveFallbackCount() {
+        return mInteractiveFallbackCount.get();
+    }
     // endregion
 
     private synchronized ConnectedDevicesAccount addAccount(String id) {
@@ -224,6 +308,7 @@ public final class AADSigninHelperAccount implements SigninHelperAccount {
         if (isSignedIn()) {
             Log.i(TAG, "Removing account.");
             mAccount = null;
+            mCachedAccessTokens.clear();
             mAuthContext.getCache().removeAll();
         }
 
@@ -246,6 +331,8 @@ public final class AADSigninHelperAccount implements SigninHelperAccount {
             }
             if (((AuthenticationException)e).getCode() != ADALError.AUTH_REFRESH_FAILED_PROMPT_NOT_ALLOWED) {
                 Log.e(TAG, "AcquireTokenHandler hit an exception: " + e.toString() + ". This may be transient.");
+                // Complete the operation, otherwise later requests for this resource would keep joining it
+                mGetAccessTokenOperation.completeExceptionally(e);
                 return;
             }
 
@@ -258,6 +345,7 @@ public final class AADSigninHelperAccount implements SigninHelperAccount {
             Log.i(TAG, "A resource was requested that the user did not previously consent to. "
                            + "Attempting to raise an interactive consent prompt.");
 
+            mInteractiveFallbackCount.incrementAndGet();
             final AuthenticationCallback<AuthenticationResult> reusedCallback = this; // reuse this callback
             new Handler(Looper.getMainLooper()).post(new AcquireTokenRunnable(mScope, mGetAccessTokenOperation, reusedCallback));
         }
@@ -268,6 +356,14 @@ public final class AADSigninHelperAccount implements SigninHelperAccount {
                 mGetAccessTokenOperation.completeExceptionally(
                     new Exception("TRANSIENT_ERROR with error " + result.getStatus().toString()));
             } else {
+                Date expiresOn = result.getExpiresOn();
+                synchronized (AADSigninHelperAccount.this) {
+                    // Skip caching if the user signed out while the token was being acquired
+                    if (expiresOn != null && isSignedIn()) {
+                        mCachedAccessTokens.put(
+                            mScope, new CachedAccessToken(result.getAccessToken(), expiresOn.getTime() - ACCESS_TOKEN_CLOSE_TO_EXPIRY_MILLIS));
+                    }
+                }
                 mGetAccessTokenOperation.complete(result.getAccessToken());
             }
         }
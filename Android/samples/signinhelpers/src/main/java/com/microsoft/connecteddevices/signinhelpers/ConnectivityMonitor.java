@@ -0,0 +1,154 @@
+//
+// Copyright (c) Microsoft Corporation. All rights reserved.
+//
+
+package com.microsoft.connecteddevices.signinhelpers;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.support.annotation.Keep;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tracks whether the device has a network connection, so that work needing the network can wait for one instead of failing.
+ * Work parked while offline is run as a single batch, on the callback executor, as soon as a connection comes back.
+ *
+ * Connectivity is followed through a ConnectivityManager network callback, which needs API 21 and the ACCESS_NETWORK_STATE permission.
+ * Without either, the device is always considered online, and nothing is ever parked.
+ */
+@Keep
+final class ConnectivityMonitor {
+    private static final String TAG = ConnectivityMonitor.class.getName();
+
+    private static ConnectivityMonitor sInstance = null;
+
+    // Networks with internet access that are currently up, as reported by the network callback
+    private final Set<Network> mAvailableNetworks = new HashSet<>();
+    private boolean mOnline = true;
+    private final List<Runnable> mParkedTasks = new ArrayList<>();
+
+    private ConnectivityMonitor() {}
+
+    /**
+     * Returns the monitor shared by everyone in the process, starting it on first use.
+     */
+    public static synchronized ConnectivityMonitor getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ConnectivityMonitor();
+            sInstance.start(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Private helper - seeds the connection state and starts listening for changes to it.
+     */
+    private void start(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return; // No network callbacks, stay online
+        }
+
+        ConnectivityManager connectivityManager = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) {
+            return;
+        }
+
+        try {
+            NetworkInfo activeNetwork = connectivityManager.getActiveNetworkInfo();
+            synchronized (this) {
+                mOnline = (activeNetwork != null) && activeNetwork.isConnected();
+            }
+
+            registerNetworkCallback(connectivityManager);
+        } catch (SecurityException e) {
+            Log.e(TAG, "Cannot monitor connectivity, assuming the device is online: \"" + e.getLocalizedMessage() + "\"");
+            synchronized (this) {
+                mOnline = true;
+            }
+        }
+    }
+
+    @TargetApi(21)
+    private void registerNetworkCallback(ConnectivityManager connectivityManager) {
+        NetworkRequest request = new NetworkRequest.Builder().addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET).build();
+        connectivityManager.registerNetworkCallback(request, new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                onNetworkAvailable(network);
+            }
+
+            @Override
+            public void onLost(Network network) {
+                onNetworkLost(network);
+            }
+        });
+    }
+
+    /**
+     * Returns whether the device currently has a network connection.
+     */
+    public synchronized boolean isOnline() {
+        return mOnline;
+    }
+
+    /**
+     * Runs the task right away on the calling thread if the device is online. Otherwise parks it until a connection comes back.
+     */
+    public void runWhenOnline(Runnable task) {
+        synchronized (this) {
+            if (!mOnline) {
+                mParkedTasks.add(task);
+                return;
+            }
+        }
+
+        task.run();
+    }
+
+    private void onNetworkAvailable(Network network) {
+        final List<Runnable> parkedTasks;
+        synchronized (this) {
+            mAvailableNetworks.add(network);
+            if (mOnline) {
+                return;
+            }
+
+            mOnline = true;
+            parkedTasks = new ArrayList<>(mParkedTasks);
+            mParkedTasks.clear();
+        }
+
+        Log.i(TAG, "Device is back online, resuming " + parkedTasks.size() + " parked task(s).");
+        if (parkedTasks.isEmpty()) {
+            return;
+        }
+
+        SigninHelperExecutors.getCallbackExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Runnable task : parkedTasks) {
+                    task.run();
+                }
+            }
+        });
+    }
+
+    private synchronized void onNetworkLost(Network network) {
+        mAvailableNetworks.remove(network);
+        if (mOnline && mAvailableNetworks.isEmpty()) {
+            Log.i(TAG, "Device is offline, parking work that needs the network.");
+            mOnline = false;
+        }
+    }
+}
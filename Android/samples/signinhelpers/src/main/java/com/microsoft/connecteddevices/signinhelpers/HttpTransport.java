@@ -0,0 +1,242 @@
+//
+// Copyright (c) Microsoft Corporation. All rights reserved.
+//
+
+package com.microsoft.connecteddevices.signinhelpers;
+
+import android.support.annotation.Keep;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Performs the HTTP requests made by the sign in helpers.
+ * Connections are left open after each request so that the platform's connection pool can reuse them for the next one,
+ * which saves the DNS lookup, TCP handshake and TLS handshake. Each request is timed, to show how long is spent on connection setup.
+ *
+ * This uses HttpURLConnection, so it gets whichever protocols the platform's implementation supports.
+ */
+@Keep
+public final class HttpTransport {
+    private static final String TAG = HttpTransport.class.getName();
+
+    private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15 * 1000; // 15 seconds
+    private static final int DEFAULT_READ_TIMEOUT_MILLIS = 30 * 1000;    // 30 seconds
+
+    private static final BodyReader<String> STRING_BODY_READER = new BodyReader<String>() {
+        @Override
+        public String read(int statusCode, InputStream stream, long contentLength) throws IOException {
+            return IOUtil.readUTF8Stream(stream, contentLength);
+        }
+    };
+
+    private static volatile HttpTransport sDefault = new HttpTransport(DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+
+    /**
+     * How long each phase of a request took, in milliseconds.
+     * A connect time close to zero means an idle pooled connection was reused.
+     */
+    public static final class Timing {
+        private final long mConnectMillis;
+        private final long mSendMillis;
+        private final long mWaitMillis;
+        private final long mReceiveMillis;
+
+        Timing(long connectMillis, long sendMillis, long waitMillis, long receiveMillis) {
+            mConnectMillis = connectMillis;
+            mSendMillis = sendMillis;
+            mWaitMillis = waitMillis;
+            mReceiveMillis = receiveMillis;
+        }
+
+        /** Time to obtain a connection, including any DNS lookup, TCP handshake and TLS handshake. */
+        public long getConnectMillis() {
+            return mConnectMillis;
+        }
+
+        /** Time to write the request body. */
+        public long getSendMillis() {
+            return mSendMillis;
+        }
+
+        /** Time from sending the request until the response status arrived. */
+        public long getWaitMillis() {
+            return mWaitMillis;
+        }
+
+        /** Time to read the response body. */
+        public long getReceiveMillis() {
+            return mReceiveMillis;
+        }
+
+        public long getTotalMillis() {
+            return mConnectMillis + mSendMillis + mWaitMillis + mReceiveMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "connect=" + mConnectMillis + "ms send=" + mSendMillis + "ms wait=" + mWaitMillis + "ms receive=" + mReceiveMillis +
+                   "ms total=" + getTotalMillis() + "ms";
+        }
+    }
+
+    /**
+     * Reads the body of a response straight from the connection.
+     */
+    public interface BodyReader<T> {
+        /**
+         * @param statusCode     HTTP status code of the response
+         * @param stream         the response body. Whatever is left unread is drained by the transport afterwards.
+         * @param contentLength  length of the body from the Content-Length header, or -1 if unknown
+         * @return The body, in whatever form the reader produces
+         * @throws IOException Thrown if the body cannot be read or is malformed
+         */
+        T read(int statusCode, InputStream stream, long contentLength) throws IOException;
+    }
+
+    /**
+     * Class encapsulating the response to a request made through the transport.
+     */
+    public static final class Response<T> {
+        private final int mStatusCode;
+        private final T mBody;
+        private final Timing mTiming;
+
+        Response(int statusCode, T body, Timing timing) {
+            mStatusCode = statusCode;
+            mBody = body;
+            mTiming = timing;
+        }
+
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        public T getBody() {
+            return mBody;
+        }
+
+        public Timing getTiming() {
+            return mTiming;
+        }
+    }
+
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+
+    /**
+     * @param connectTimeoutMillis  how long to wait for a connection to be established, in milliseconds
+     * @param readTimeoutMillis     how long to wait for response data once connected, in milliseconds
+     */
+    public HttpTransport(int connectTimeoutMillis, int readTimeoutMillis) {
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Returns the transport used by the sign in helpers.
+     */
+    public static HttpTransport getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Replaces the transport used by the sign in helpers, for example to change timeouts.
+     */
+    public static void setDefault(HttpTransport transport) {
+        sDefault = transport;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return mConnectTimeoutMillis;
+    }
+
+    public int getReadTimeoutMillis() {
+        return mReadTimeoutMillis;
+    }
+
+    /**
+     * Synchronously posts a request body to the given URL, and reads the whole response as a string.
+     *
+     * @param url           URL to post to
+     * @param contentType   content type of the request body
+     * @param body          request body, sent as UTF-8
+     * @return The response, including its body for both successful and failed statuses
+     * @throws IOException Thrown if the request could not be sent or the response could not be read
+     */
+    public Response<String> post(URL url, String contentType, String body) throws IOException {
+        return post(url, contentType, body, STRING_BODY_READER);
+    }
+
+    /**
+     * Synchronously posts a request body to the given URL, and reads the response with the given reader.
+     *
+     * @param url           URL to post to
+     * @param contentType   content type of the request body
+     * @param body          request body, sent as UTF-8
+     * @param bodyReader    reads the response body, for both successful and failed statuses
+     * @return The response, with the body as produced by bodyReader
+     * @throws IOException Thrown if the request could not be sent or the response could not be read
+     */
+    public <T> Response<T> post(URL url, String contentType, String body, BodyReader<T> bodyReader) throws IOException {
+        byte[] bodyBytes = body.getBytes("UTF-8");
+
+        HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+        connection.setConnectTimeout(mConnectTimeoutMillis);
+        connection.setReadTimeout(mReadTimeoutMillis);
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(bodyBytes.length);
+        connection.setRequestProperty("Content-Type", contentType);
+
+        try {
+            long startNanos = System.nanoTime();
+            connection.connect();
+            long connectedNanos = System.nanoTime();
+
+            try (OutputStream stream = connection.getOutputStream()) {
+                stream.write(bodyBytes);
+            }
+            long sentNanos = System.nanoTime();
+
+            int statusCode = connection.getResponseCode();
+            long respondedNanos = System.nanoTime();
+
+            // The response has to be read to the end and closed, not disconnected, for the connection to go back to the pool.
+            // The reader gets a view of the stream it cannot close, so that whatever it leaves unread can be drained here.
+            InputStream responseStream = (statusCode >= HttpURLConnection.HTTP_BAD_REQUEST) ? connection.getErrorStream()
+                                                                                            : connection.getInputStream();
+            if (responseStream == null) {
+                responseStream = new ByteArrayInputStream(new byte[0]);
+            }
+
+            T responseBody;
+            try (InputStream stream = responseStream) {
+                responseBody = bodyReader.read(statusCode, new FilterInputStream(stream) {
+                    @Override
+                    public void close() {}
+                }, connection.getContentLength());
+                IOUtil.drainStream(stream);
+            }
+            long receivedNanos = System.nanoTime();
+
+            Timing timing = new Timing(TimeUnit.NANOSECONDS.toMillis(connectedNanos - startNanos),
+                TimeUnit.NANOSECONDS.toMillis(sentNanos - connectedNanos), TimeUnit.NANOSECONDS.toMillis(respondedNanos - sentNanos),
+                TimeUnit.NANOSECONDS.toMillis(receivedNanos - respondedNanos));
+            Log.i(TAG, "POST " + url.getHost() + url.getPath() + " returned " + statusCode + " (" + timing + ")");
+
+            return new Response<>(statusCode, responseBody, timing);
+
+        } catch (IOException e) {
+            // The connection may be left in an unknown state, make sure it is not reused
+            connection.disconnect();
+            throw e;
+        }
+    }
+}
@@ -6,17 +6,27 @@ package com.microsoft.connecteddevices.signinhelpers;
 
 import android.support.annotation.Keep;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 
 @Keep
 public final class IOUtil {
 
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    // Capacity to start with when the caller has no idea how much data to expect
+    private static final int DEFAULT_SIZE_HINT = 1024;
+
+    // Each thread reuses one copy buffer, rather than allocating a new one per stream
+    private static final ThreadLocal<byte[]> sBuffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
     /**
      * Writes UTF-8 output data to an output stream.
      * This method is synchronous, and should only be used on small data sizes.
@@ -26,13 +36,13 @@ public final class IOUtil {
      * @throws IOException Thrown if the output stream is unavailable, or encoding the data fails
      */
     public static void writeUTF8Stream(OutputStream stream, String data) throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"))) {
-            writer.write(data);
+        try (OutputStream output = stream) {
+            output.write(data.getBytes("UTF-8"));
         }
     }
 
     /**
-     * Reads the contents of a UTF-8 input stream.
+     * Reads the contents of a UTF-8 input stream, exactly as they are.
      * This method is synchronous, and should only be used on small data sizes.
      *
      * @param stream Input stream to read from
@@ -40,14 +50,56 @@ public final class IOUtil {
      * @throws IOException Thrown if the input stream is unavailable, or decoding the data fails
      */
     public static String readUTF8Stream(InputStream stream) throws IOException {
-        StringBuilder stringBuilder = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                stringBuilder.append(line);
+        return readUTF8Stream(stream, -1);
+    }
+
+    /**
+     * Reads the contents of a UTF-8 input stream, exactly as they are.
+     * This method is synchronous, and should only be used on small data sizes.
+     *
+     * @param stream Input stream to read from
+     * @param sizeHint Expected number of bytes in the stream, e.g. from a Content-Length header or a file's length, or -1 if unknown
+     * @return All data received from the stream
+     * @throws IOException Thrown if the input stream is unavailable, or decoding the data fails
+     */
+    public static String readUTF8Stream(InputStream stream, long sizeHint) throws IOException {
+        return new String(readStream(stream, sizeHint), "UTF-8");
+    }
+
+    /**
+     * Reads the contents of an input stream, then closes it.
+     * This method is synchronous, and should only be used on small data sizes.
+     *
+     * @param stream Input stream to read from
+     * @param sizeHint Expected number of bytes in the stream, e.g. from a Content-Length header or a file's length, or -1 if unknown
+     * @return All data received from the stream
+     * @throws IOException Thrown if the input stream is unavailable
+     */
+    public static byte[] readStream(InputStream stream, long sizeHint) throws IOException {
+        int initialSize = (sizeHint > 0 && sizeHint < Integer.MAX_VALUE) ? (int)sizeHint : DEFAULT_SIZE_HINT;
+        ByteArrayOutputStream output = new ByteArrayOutputStream(initialSize);
+
+        try (InputStream input = stream) {
+            byte[] buffer = sBuffers.get();
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                output.write(buffer, 0, count);
             }
         }
 
-        return stringBuilder.toString();
+        return output.toByteArray();
+    }
+
+    /**
+     * Reads and discards whatever is left in an input stream, without closing it.
+     *
+     * @param stream Input stream to drain
+     * @throws IOException Thrown if the input stream is unavailable
+     */
+    public static void drainStream(InputStream stream) throws IOException {
+        byte[] buffer = sBuffers.get();
+        while (stream.read(buffer) != -1) {
+            // Discard
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,106 @@
+//
+// Copyright (c) Microsoft Corporation. All rights reserved.
+//
+
+package com.microsoft.connecteddevices.signinhelpers;
+
+import android.os.SystemClock;
+import android.support.annotation.Keep;
+import android.util.Log;
+
+/**
+ * Decides when token refreshes that failed with a transient error are retried, shared by every cache item talking to the same endpoint.
+ *
+ * Retries back off exponentially with full jitter: the n-th retry waits a random time between zero and base * 2^n, up to a cap.
+ * Spreading retries out this way keeps the items that failed together during an outage from all retrying at the same moment.
+ *
+ * A circuit breaker sits in front of the endpoint. After enough consecutive transient failures it opens, and refreshes fail fast
+ * without touching the network. Once the open period is over a single probe request is let through:
+ * if it reaches the endpoint the circuit closes again, otherwise it stays open for another period.
+ */
+@Keep
+final class MSARetryPolicy {
+    private static final String TAG = MSARetryPolicy.class.getName();
+
+    private final long mBaseDelayMillis;
+    private final int mFailureThreshold;
+    private final long mOpenMillis;
+
+    private int mConsecutiveFailures = 0;
+    private long mOpenUntilMillis = 0; // Time since boot at which an open circuit lets a probe through, or 0 if the circuit is closed
+    private boolean mProbeInFlight = false;
+
+    /**
+     * @param baseDelayMillis   upper bound of the delay before the first retry
+     * @param failureThreshold  number of consecutive transient failures that opens the circuit
+     * @param openMillis        how long the circuit stays open before letting a probe through
+     */
+    public MSARetryPolicy(long baseDelayMillis, int failureThreshold, long openMillis) {
+        mBaseDelayMillis = baseDelayMillis;
+        mFailureThreshold = failureThreshold;
+        mOpenMillis = openMillis;
+    }
+
+    /**
+     * Returns how long to wait before the given retry.
+     * @param attempt         zero for the first retry, one for the second, and so on
+     * @param maxDelayMillis  cap on the delay
+     */
+    public long getRetryDelayMillis(int attempt, long maxDelayMillis) {
+        long ceilingMillis = maxDelayMillis;
+        if (attempt < Long.SIZE - 1 && mBaseDelayMillis <= (maxDelayMillis >> attempt)) {
+            ceilingMillis = mBaseDelayMillis << attempt;
+        }
+        return (long)(Math.random() * ceilingMillis);
+    }
+
+    /**
+     * Returns whether a request may be sent to the endpoint now. Returns false while the circuit is open.
+     */
+    public synchronized boolean allowRequest() {
+        if (mOpenUntilMillis == 0) {
+            return true; // Closed
+        }
+
+        if (mProbeInFlight || SystemClock.elapsedRealtime() < mOpenUntilMillis) {
+            return false;
+        }
+
+        Log.i(TAG, "Letting a probe request through to the token endpoint.");
+        mProbeInFlight = true;
+        return true;
+    }
+
+    /**
+     * Records that a request got an answer from the endpoint, whether or not the answer was a token.
+     */
+    public synchronized void onEndpointReachable() {
+        if (mOpenUntilMillis != 0) {
+            Log.i(TAG, "Token endpoint is reachable again, closing the circuit.");
+        }
+
+        mConsecutiveFailures = 0;
+        mOpenUntilMillis = 0;
+        mProbeInFlight = false;
+    }
+
+    /**
+     * Records that a request let through by allowRequest() ended without telling anything about the endpoint,
+     * e.g. because the device went offline. If it was the probe, the next request may probe instead.
+     */
+    public synchronized void onRequestAbandoned() {
+        mProbeInFlight = false;
+    }
+
+    /**
+     * Records that a request failed with a transient error.
+     */
+    public synchronized void onEndpointFailure() {
+        mConsecutiveFailures++;
+        if (mProbeInFlight || (mOpenUntilMillis == 0 && mConsecutiveFailures >= mFailureThreshold)) {
+            Log.e(TAG, "Token endpoint failed " + mConsecutiveFailures + " time(s) in a row, failing fast for " + mOpenMillis + "ms.");
+            mOpenUntilMillis = SystemClock.elapsedRealtime() + mOpenMillis;
+            mProbeInFlight = false;
+        }
+    }
+}
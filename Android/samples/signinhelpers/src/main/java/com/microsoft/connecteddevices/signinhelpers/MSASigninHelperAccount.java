@@ -29,11 +29,17 @@ import com.microsoft.connecteddevices.ConnectedDevicesAccount;
 import com.microsoft.connecteddevices.ConnectedDevicesAccountType;
 
 import java.io.IOException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Sample implementation of integration with the ConnectedDevicesAccountManager.
@@ -100,6 +106,12 @@ public final class MSASigninHelperAccount implements SigninHelperAccount {
         "https://activity.windows.com/UserActivity.ReadWrite.CreatedByApp" // default useractivities scope
         );
 
+    // Scope that grants the refresh token itself, access tokens are never requested for it
+    private static final String OFFLINE_ACCESS_SCOPE = "wl.offline_access";
+
+    // How many access token requests a prefetch keeps in flight at once
+    private static final int DEFAULT_PREFETCH_CONCURRENCY = 3;
+
     // OAuth URLs
     private static final String REDIRECT_URL = "https://login.live.com/oauth20_desktop.srf";
     private static final String AUTHORIZE_URL = "https://login.live.com/oauth20_authorize.srf";
@@ -109,36 +121,105 @@ public final class MSASigninHelperAccount implements SigninHelperAccount {
     // region Member Variables
     private final String mClientId;
     private final Map<String, String[]> mScopeOverrideMap;
-    private ConnectedDevicesAccount mAccount;
-    private MSATokenCache mTokenCache;
+    private volatile ConnectedDevicesAccount mAccount; // Set without the lock only by the load, which finishes before anyone reads it
+    private final Context mContext;
+
+    // While signed in, the process-wide cache for the account, shared with any other helper for the same account.
+    // While signed out, a private cache that holds nothing.
+    private volatile MSATokenCache mTokenCache;
+    private final MSATokenCache.Listener mTokenCacheListener = new MSATokenCache.Listener() {
+        @Override
+        public void onTokenCachePermanentFailure() {
+            Log.e(TAG, "MSA Token Cache has hit a failure. The next login will require credentials.");
+        }
+    };
+
+    // Completes with whether a previous session was loaded, once loading is done
+    private final AsyncOperation<Boolean> mLoadOperation;
+
+    // Canonical scope key for each scope list asked for, so that repeated requests for the same scopes skip rebuilding the key
+    private final Map<List<String>, String> mScopeKeys = new ConcurrentHashMap<>();
 
     private long mNextListenerId = 1L;
     // endregion
 
     // region Constructor
     /**
+     * Loads the session of the most recently signed in account, if there is one.
      * @param clientId           id of the app's registration in the MSA portal
      * @param scopeOverrides     scope overrides for the app
      * @param context
      */
     public MSASigninHelperAccount(String clientId, final Map<String, String[]> scopeOverrides, Context context) {
+        this(clientId, null, scopeOverrides, context);
+    }
+
+    /**
+     * Loads the session of the given account. Use getSavedAccountIds() to find the accounts that have a session to load.
+     * @param clientId           id of the app's registration in the MSA portal
+     * @param accountId          id of the account to load the session of, or null for the most recently signed in account
+     * @param scopeOverrides     scope overrides for the app
+     * @param context
+     */
+    public MSASigninHelperAccount(String clientId, String accountId, final Map<String, String[]> scopeOverrides, Context context) {
+        this(clientId, accountId, scopeOverrides, context, false);
+    }
+
+    /**
+     * Loads the session of the given account, optionally in the background.
+     * Loading reads the token save file and shared preferences, so apps that create accounts on the UI thread should load in the background.
+     * Until loading is done, isSignedIn(), getAccount() and signIn() block to wait for it, and getAccessTokenAsync() chains onto it.
+     * Use getLoadOperation() to find out when it is done without blocking.
+     * @param clientId           id of the app's registration in the MSA portal
+     * @param accountId          id of the account to load the session of, or null for the most recently signed in account
+     * @param scopeOverrides     scope overrides for the app
+     * @param context
+     * @param loadInBackground   whether to return right away and load the session on a background thread
+     */
+    public MSASigninHelperAccount(final String clientId, final String accountId, final Map<String, String[]> scopeOverrides,
+        final Context context, boolean loadInBackground) {
         mClientId = clientId;
         mScopeOverrideMap = scopeOverrides;
+        mContext = context;
         mTokenCache = new MSATokenCache(clientId, context);
-        mTokenCache.addListener(new MSATokenCache.Listener() {
+
+        if (loadInBackground) {
+            mLoadOperation = AsyncOperation.supplyAsync(new AsyncOperation.Supplier<Boolean>() {
+                @Override
+                public Boolean get() {
+                    return loadSavedSession(accountId);
+                }
+            }, SigninHelperExecutors.getIoExecutor());
+        } else {
+            mLoadOperation = AsyncOperation.completedFuture(loadSavedSession(accountId));
+        }
+
+        SigninHelperExecutors.thenAccept(mLoadOperation, new AsyncOperation.ResultConsumer<Boolean>() {
             @Override
-            public void onTokenCachePermanentFailure() {
-                Log.e(TAG, "MSA Token Cache has hit a failure. The next login will require credentials.");
+            public void accept(Boolean loaded) {
+                if (loaded) {
+                    prefetchKnownAccessTokens();
+                }
             }
         });
+    }
+    // endregion
 
-        if (mTokenCache.loadSavedRefreshToken()) {
-            String id = mTokenCache.readSavedAccountId();
-            Log.i(TAG, "Loaded previous session for MSASigninHelperAccount: " + id + ". Starting as signed in.");
-            mAccount = new ConnectedDevicesAccount(id, ConnectedDevicesAccountType.MSA);
-        } else {
-            Log.i(TAG, "No previous session could be loaded for MSASigninHelperAccount. Starting as signed out.");
-        }
+    // region Public Static Methods
+    /**
+     * Returns the ids of all accounts of the given app that have a saved session, which can be loaded without signing in again.
+     */
+    public static List<String> getSavedAccountIds(String clientId, Context context) {
+        return MSATokenCache.getSavedAccountIds(clientId, context);
+    }
+
+    /**
+     * Points token requests at a different endpoint than login.live.com, e.g. a local stand-in service for testing.
+     * This affects every MSASigninHelperAccount in the process.
+     * @param tokenUrl URL of the token endpoint, or null to go back to the MSA endpoint
+     */
+    public static void setTokenEndpoint(URL tokenUrl) {
+        MSATokenRequest.setTokenUrl(tokenUrl);
     }
     // endregion
 
@@ -202,25 +283,31 @@ public final class MSASigninHelperAccount implements SigninHelperAccount {
             .thenComposeAsync(new AsyncOperation.ResultFunction<String, AsyncOperation<MSATokenRequest.Result>>() {
                 @Override
                 public AsyncOperation<MSATokenRequest.Result> apply(String authCode) {
-                    return MSATokenRequest.requestAsync(mClientId, MSATokenRequest.GrantType.CODE, null, REDIRECT_URL, authCode);
+                    // Redeemed through the same retry policy as every other token request, so it fails fast while the endpoint is down
+                    MSATokenRequest request = new MSATokenRequest(mClientId, MSATokenRequest.GrantType.CODE, null, REDIRECT_URL);
+                    return mTokenCache.requestThroughRetryPolicyAsync(request, authCode);
                 }
-            })
+            }, SigninHelperExecutors.getCallbackExecutor())
             .thenAcceptAsync(new AsyncOperation.ResultConsumer<MSATokenRequest.Result>() {
                 @Override
                 public void accept(MSATokenRequest.Result result) {
-                    if (result.getStatus() == MSATokenRequest.Result.Status.SUCCESS) {
+                    if (result != null && result.getStatus() == MSATokenRequest.Result.Status.SUCCESS) {
                         if (result.getRefreshToken() == null) {
                             signInOperation.completeExceptionally(
                                 new Exception("Unexpected: refresh token is null despite succeeding in refresh."));
                         }
 
                         Log.i(TAG, "Successfully fetched refresh token.");
-                        // Persist the refresh token
-                        mTokenCache.setRefreshToken(result.getRefreshToken());
                         // Generate an ID for the Account
                         String id = UUID.randomUUID().toString();
-                        // Persist the Accounts ID so we can create an Account object with a matching ID
-                        mTokenCache.saveAccountId(id);
+                        // Persist the refresh token under the Account's ID, in the cache shared by everyone using this Account
+                        MSATokenCache tokenCache = MSATokenCache.acquire(mClientId, id, mContext);
+                        tokenCache.setRefreshToken(id, result.getRefreshToken());
+                        useTokenCache(tokenCache);
+                        // Persist the Accounts ID as the most recently signed in account, so we can create an Account object with a matching ID
+                        tokenCache.saveAccountId(id);
+                        // Start fetching access tokens now, so they are ready by the time the platform asks for them
+                        prefetchKnownAccessTokens();
                         // Complete the operation with the newly created account
                         signInOperation.complete(addAccount(id));
                     } else {
@@ -228,7 +315,7 @@ public final class MSASigninHelperAccount implements SigninHelperAccount {
                         signInOperation.completeExceptionally(new Exception("Failed to fetch refresh token using auth code."));
                     }
                 }
-            })
+            }, SigninHelperExecutors.getCallbackExecutor())
             .exceptionally(new AsyncOperation.ResultFunction<Throwable, Void>() {
                 @Override
                 public Void apply(Throwable throwable) throws Throwable {
@@ -292,30 +379,56 @@ public final class MSASigninHelperAccount implements SigninHelperAccount {
     }
 
     @Override
-    public synchronized AsyncOperation<String> getAccessTokenAsync(final List<String> scopes) {
-        final String scope = TextUtils.join(" ", getAuthScopes(scopes));
+    public AsyncOperation<String> getAccessTokenAsync(final List<String> scopes) {
+        if (!mLoadOperation.isDone()) {
+            // Wait for the saved tokens to be loaded without blocking the caller
+            return SigninHelperExecutors.thenCompose(mLoadOperation, new AsyncOperation.ResultFunction<Boolean, AsyncOperation<String>>() {
+                @Override
+                public AsyncOperation<String> apply(Boolean loaded) {
+                    return getAccessTokenAsync(scopes);
+                }
+            });
+        }
 
-        return mTokenCache.getAccessTokenAsync(scope).thenComposeAsync(new AsyncOperation.ResultFunction<String, AsyncOperation<String>>() {
-            @Override
-            public AsyncOperation<String> apply(String accessToken) {
-                if (accessToken != null) {
-                    // Token already exists in the cache, can early return
-                    return AsyncOperation.completedFuture(accessToken);
-                } else {
-                    // Token does not yet exist in the cache, need to request a new one
-                    return requestNewAccessTokenAsync(scope);
+        final String scope = getScopeKey(scopes);
+
+        AsyncOperation<String> cachedAccessTokenOperation = mTokenCache.getAccessTokenAsync(scope);
+        if (cachedAccessTokenOperation.isDone() && !cachedAccessTokenOperation.isCompletedExceptionally() &&
+            cachedAccessTokenOperation.getNow(null) != null) {
+            // Token already exists in the cache, can return it without chaining anything
+            return cachedAccessTokenOperation;
+        }
+
+        return SigninHelperExecutors.thenCompose(
+            cachedAccessTokenOperation, new AsyncOperation.ResultFunction<String, AsyncOperation<String>>() {
+                @Override
+                public AsyncOperation<String> apply(String accessToken) {
+                    if (accessToken != null) {
+                        // Token was refreshed in the cache, can early return
+                        return AsyncOperation.completedFuture(accessToken);
+                    } else {
+                        // Token does not yet exist in the cache, need to request a new one, or join the one already in flight
+                        final MSATokenCache tokenCache = mTokenCache;
+                        return tokenCache.getOrStartAccessTokenRequest(scope, new AsyncOperation.Supplier<AsyncOperation<String>>() {
+                            @Override
+                            public AsyncOperation<String> get() {
+                                return requestNewAccessTokenAsync(tokenCache, scope);
+                            }
+                        });
+                    }
                 }
-            }
-        });
+            });
     }
 
     @Override
     public synchronized boolean isSignedIn() {
+        awaitLoaded();
         return mAccount != null;
     }
 
     @Override
     public synchronized ConnectedDevicesAccount getAccount() {
+        awaitLoaded();
         return mAccount;
     }
     // endregion
@@ -325,6 +438,51 @@ public final class MSASigninHelperAccount implements SigninHelperAccount {
         return mClientId;
     }
 
+    /**
+     * Gives up this helper's reference to the token cache it shares with other helpers for the same account.
+     * Once every helper for an account is released, its tokens are no longer refreshed in the background.
+     * The helper must not be used afterwards.
+     */
+    public void release() {
+        awaitLoaded();
+        MSATokenCache tokenCache = mTokenCache;
+        tokenCache.removeListener(mTokenCacheListener);
+        tokenCache.release();
+    }
+
+    /**
+     * Returns an operation that completes with whether a previous session was loaded, once the account is done loading.
+     */
+    public AsyncOperation<Boolean> getLoadOperation() {
+        return mLoadOperation;
+    }
+
+    /**
+     * Fetches access tokens for the given scopes ahead of time, so that later calls to getAccessTokenAsync are served from the cache.
+     * Each scope is fetched as its own token, the same way the platform asks for them.
+     * This assumes that the sign in helper is currently signed in.
+     * @param scopes             scopes to fetch access tokens for
+     * @param maxConcurrency     how many token requests may be in flight at once
+     * @return An operation that completes once every fetch has finished. Failed fetches are logged, not reported.
+     */
+    public AsyncOperation<Void> prefetchAccessTokensAsync(final List<String> scopes, int maxConcurrency) {
+        if (scopes.isEmpty()) {
+            return AsyncOperation.completedFuture(null);
+        }
+
+        final AsyncOperation<Void> prefetchOperation = new AsyncOperation<>();
+        final AtomicInteger nextIndex = new AtomicInteger(0);
+        final AtomicInteger remaining = new AtomicInteger(scopes.size());
+
+        // Each lane fetches one scope at a time, moving on to the next unclaimed scope when its fetch finishes
+        int lanes = Math.max(1, Math.min(maxConcurrency, scopes.size()));
+        for (int i = 0; i < lanes; i++) {
+            prefetchNextAccessToken(scopes, nextIndex, remaining, prefetchOperation);
+        }
+
+        return prefetchOperation;
+    }
+
     public void onSignOutPageFinishedInternal(String url, Dialog dialog, AsyncOperation<ConnectedDevicesAccount> signOutOperation) {
         if (!url.contains("oauth20_desktop.srf")) {
             // finishing off loading intermediate pages,
@@ -368,6 +526,60 @@ public final class MSASigninHelperAccount implements SigninHelperAccount {
     // endregion
 
     // region Private Instance Methods
+    /**
+     * Loads the saved session of the given account, or of the most recently signed in account if accountId is null.
+     * @return Whether a session was loaded
+     */
+    private boolean loadSavedSession(String accountId) {
+        String id = (accountId != null) ? accountId : MSATokenCache.readSavedAccountId(mContext);
+        if (!id.isEmpty()) {
+            // Another helper for the same account may have loaded the shared cache already, in which case this is quick
+            MSATokenCache tokenCache = MSATokenCache.acquire(mClientId, id, mContext);
+            if (tokenCache.loadSavedRefreshToken(id)) {
+                useTokenCache(tokenCache);
+                Log.i(TAG, "Loaded previous session for MSASigninHelperAccount: " + id + ". Starting as signed in.");
+                mAccount = new ConnectedDevicesAccount(id, ConnectedDevicesAccountType.MSA);
+                return true;
+            }
+
+            tokenCache.release();
+        }
+
+        Log.i(TAG, "No previous session could be loaded for MSASigninHelperAccount. Starting as signed out.");
+        return false;
+    }
+
+    /**
+     * Switches to the given token cache, giving up the reference to the previous one.
+     */
+    private void useTokenCache(MSATokenCache tokenCache) {
+        MSATokenCache previousTokenCache = mTokenCache;
+        tokenCache.addListener(mTokenCacheListener);
+        mTokenCache = tokenCache;
+
+        previousTokenCache.removeListener(mTokenCacheListener);
+        previousTokenCache.release();
+    }
+
+    /**
+     * Blocks until the saved session is done loading. Returns right away if it already is.
+     * Loading never takes this object's lock, so this may be called while holding it.
+     */
+    private void awaitLoaded() {
+        if (mLoadOperation.isDone()) {
+            return;
+        }
+
+        Log.i(TAG, "Waiting for the saved session to load.");
+        try {
+            mLoadOperation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to load saved session: \"" + e.getLocalizedMessage() + "\"");
+        }
+    }
+
     private void onSignInPageFinishedInternal(String url, Dialog dialog, AsyncOperation<String> authCodeOperation) {
         if (url.startsWith(REDIRECT_URL)) {
             final Uri uri = Uri.parse(url);
@@ -390,6 +602,68 @@ public final class MSASigninHelperAccount implements SigninHelperAccount {
         authCodeOperation.completeExceptionally(new Exception(errorString));
     }
 
+    /**
+     * Prefetches access tokens for every scope the platform needs, unless another helper sharing the token cache already did.
+     */
+    private void prefetchKnownAccessTokens() {
+        if (!mTokenCache.claimPrefetch()) {
+            Log.i(TAG, "Access tokens were already prefetched for this account, skipping.");
+            return;
+        }
+
+        List<String> scopes = new ArrayList<>(KNOWN_SCOPES);
+        scopes.remove(OFFLINE_ACCESS_SCOPE);
+        prefetchAccessTokensAsync(scopes, DEFAULT_PREFETCH_CONCURRENCY);
+    }
+
+    private void prefetchNextAccessToken(final List<String> scopes, final AtomicInteger nextIndex, final AtomicInteger remaining,
+        final AsyncOperation<Void> prefetchOperation) {
+        int index = nextIndex.getAndIncrement();
+        if (index >= scopes.size()) {
+            return; // Every scope has been claimed by a lane
+        }
+
+        final String scope = scopes.get(index);
+        AsyncOperation<String> tokenOperation;
+        try {
+            tokenOperation = getAccessTokenAsync(Collections.singletonList(scope));
+        } catch (RuntimeException e) {
+            // Count the scope as done, so that the lane moves on and the prefetch still completes
+            tokenOperation = new AsyncOperation<>();
+            tokenOperation.completeExceptionally(e);
+        }
+
+        tokenOperation.whenComplete(new AsyncOperation.ResultBiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String token, Throwable throwable) {
+                if (throwable != null) {
+                    Log.e(TAG, "Failed to prefetch access token for " + scope + ": \"" + throwable.getLocalizedMessage() + "\"");
+                }
+
+                if (remaining.decrementAndGet() <= 0) {
+                    Log.i(TAG, "Finished prefetching access tokens for " + scopes.size() + " scope(s).");
+                    prefetchOperation.complete(null);
+                } else {
+                    prefetchNextAccessToken(scopes, nextIndex, remaining, prefetchOperation);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the canonical key for the given scopes: the scopes after overrides are applied, deduplicated, sorted and space-separated.
+     * Scope lists that differ only in order or duplicates map to the same key, and so to the same cached token.
+     * Keys are interned and memoized per scope list.
+     */
+    private String getScopeKey(List<String> scopes) {
+        String scopeKey = mScopeKeys.get(scopes);
+        if (scopeKey == null) {
+            scopeKey = TextUtils.join(" ", new TreeSet<>(getAuthScopes(scopes))).intern();
+            mScopeKeys.put(new ArrayList<>(scopes), scopeKey); // Copied, since the caller may change its list later
+        }
+        return scopeKey;
+    }
+
     private List<String> getAuthScopes(final List<String> incoming) {
         ArrayList<String> authScopes = new ArrayList<String>();
 
@@ -413,46 +687,35 @@ public final class MSASigninHelperAccount implements SigninHelperAccount {
     }
 
     private synchronized ConnectedDevicesAccount removeAccount() {
+        awaitLoaded();
         ConnectedDevicesAccount account = mAccount;
         // Only clear the tokens and assign member to null if signed in.
         if (isSignedIn()) {
             Log.i(TAG, "Removing account.");
             mAccount = null;
-            // We clear all tokens we assume we only have 1 account added.
+            // Only clears this account's tokens, other accounts signed in to the app keep theirs.
             mTokenCache.clearTokens();
+            useTokenCache(new MSATokenCache(mClientId, mContext));
         }
 
         return account;
     }
 
     /**
-     * Asynchronously requests a new access token for the provided scope(s) and caches it.
+     * Asynchronously requests a new access token for the provided scope(s) and caches it in the given cache.
+     * The cache sends the request through the same retry policy as its refreshes.
      * This assumes that the sign in helper is currently signed in.
      */
-    private AsyncOperation<String> requestNewAccessTokenAsync(final String scope) {
-        // Need the refresh token first, then can use it to request an access token
-        return mTokenCache.getRefreshTokenAsync()
-            .thenComposeAsync(new AsyncOperation.ResultFunction<String, AsyncOperation<MSATokenRequest.Result>>() {
-                @Override
-                public AsyncOperation<MSATokenRequest.Result> apply(String refreshToken) {
-                    return MSATokenRequest.requestAsync(mClientId, MSATokenRequest.GrantType.REFRESH, scope, null, refreshToken);
-                }
-            })
-            .thenApplyAsync(new AsyncOperation.ResultFunction<MSATokenRequest.Result, String>() {
-                @Override
-                public String apply(MSATokenRequest.Result result) throws Throwable {
-                    switch (result.getStatus()) {
-                    case SUCCESS:
-                        Log.i(TAG, "Successfully fetched access token.");
-                        String token = result.getAccessToken();
-                        mTokenCache.setAccessToken(token, scope, result.getExpiresIn());
-                        return token;
-                    case TRANSIENT_FAILURE: throw new IOException("Requesting new access token failed temporarily, please try again.");
-                    default: // PERMANENT_FAILURE
-                        throw new IOException("Permanent error occurred while fetching access token.");
-                    }
+    private AsyncOperation<String> requestNewAccessTokenAsync(final MSATokenCache tokenCache, final String scope) {
+        return tokenCache.requestAccessTokenAsync(scope).thenApply(new AsyncOperation.ResultFunction<String, String>() {
+            @Override
+            public String apply(String token) throws Throwable {
+                if (token == null) {
+                    throw new IOException("Failed to fetch access token, please try again.");
                 }
-            });
+                return token;
+            }
+        });
     }
     // endregion
 }
@@ -6,7 +6,6 @@ package com.microsoft.connecteddevices.signinhelpers;
 
 import android.content.Context;
 import android.support.annotation.Keep;
-import android.util.ArrayMap;
 import android.util.Log;
 import android.content.SharedPreferences;
 
@@ -15,29 +14,33 @@ import com.microsoft.connecteddevices.AsyncOperation;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
- * Caches MSA access and refresh tokens, automatically refreshing them as needed when fetching from the cache.
- * Cached refresh tokens are persisted across sessions.
+ * Caches MSA access and refresh tokens for one account, automatically refreshing them as needed when fetching from the cache.
+ * Cached refresh tokens, along with access tokens that are still fresh, are persisted across sessions.
+ * Caches for different accounts of the same app share one save file, in which each account's tokens are kept separately.
  */
 @Keep
 final class MSATokenCache {
@@ -46,10 +49,16 @@ final class MSATokenCache {
     // Max number of times to try to refresh a token through transient failures
     private static final int TOKEN_REFRESH_MAX_RETRIES = 3;
 
-    // How quickly to retry refreshing a token when encountering a transient failure
+    // How quickly to retry refreshing a token when encountering a transient failure.
+    // Retries back off exponentially from the base delay, up to the cap for the kind of token.
+    private static final long MSA_RETRY_BASE_SECONDS = 5;
     private static final long MSA_REFRESH_TOKEN_RETRY_SECONDS = 30 * 60; // 30 minutes
     private static final long MSA_ACCESS_TOKEN_RETRY_SECONDS = 3 * 60;   // 3 minutes
 
+    // How many transient failures in a row make refreshes fail fast, and for how long
+    private static final int MSA_CIRCUIT_FAILURE_THRESHOLD = 5;
+    private static final long MSA_CIRCUIT_OPEN_SECONDS = 60; // 1 minute
+
     // How long it takes a refresh token to expire
     private static final int MSA_REFRESH_TOKEN_EXPIRATION_SECONDS = 10 * 24 * 60 * 60; // 10 days
 
@@ -58,42 +67,113 @@ final class MSATokenCache {
     private static final int MSA_REFRESH_TOKEN_CLOSE_TO_EXPIRY_SECONDS = 7 * 24 * 60 * 60; // 7 days
     private static final int MSA_ACCESS_TOKEN_CLOSE_TO_EXPIRY_SECONDS = 5 * 60;            // 5 minutes
 
+    // How long before a token is considered in need of a refresh to refresh it in the background,
+    // plus a random spread on top so that tokens cached at the same time do not all refresh at once.
+    private static final long MSA_PROACTIVE_REFRESH_LEAD_SECONDS = 60;   // 1 minute
+    private static final long MSA_PROACTIVE_REFRESH_JITTER_SECONDS = 60; // 1 minute
+
     private static final String MSA_OFFLINE_ACCESS_SCOPE = "wl.offline_access";
     private static final String GUID_ID_KEY = "GUID_ID_KEY";
+    private static final String JSON_ACCESS_TOKENS_KEY = "access_tokens";
+    private static final String JSON_EXPIRATION_KEY = "expires_at";      // epoch millis
+    private static final String JSON_LEGACY_EXPIRATION_KEY = "expires"; // DateFormat.getDateTimeInstance() string
 
     private static final ScheduledExecutorService sRetryExecutor = Executors.newSingleThreadScheduledExecutor();
 
+    // Shared by every cache in the process, since they all talk to the same endpoint
+    private static final MSARetryPolicy sRetryPolicy = new MSARetryPolicy(
+        TimeUnit.SECONDS.toMillis(MSA_RETRY_BASE_SECONDS), MSA_CIRCUIT_FAILURE_THRESHOLD, TimeUnit.SECONDS.toMillis(MSA_CIRCUIT_OPEN_SECONDS));
+
+    /**
+     * Helper function. Returns the current time in epoch millis. All expiry tracking in the cache reads the clock through here.
+     * Wall-clock time is used, rather than time since boot, because expiration times are persisted across sessions.
+     */
+    private static long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Helper function. Returns the time n seconds from now, in epoch millis.
+     */
+    private static long getMillisSecondsAfterNow(int seconds) {
+        return currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+    }
+
     /**
-     * Helper function. Returns a Date n seconds from now.
+     * Helper function. Reads the absolute expiration time of a saved token, in epoch millis.
+     * Files saved by older versions hold a locale-dependent date string instead. These are parsed here once,
+     * and rewritten in the new format by the next save.
+     *
+     * @throws IOException     Thrown if the json holds no expiration time
+     * @throws ParseException  Thrown if the json holds a legacy date string that cannot be parsed in the current locale
      */
-    private static final Date getDateSecondsAfterNow(int seconds) {
-        return getDateSecondsAfter(null, seconds);
+    private static long readSavedExpirationMillis(JSONObject json) throws IOException, ParseException {
+        long expirationMillis = json.optLong(JSON_EXPIRATION_KEY, -1);
+        if (expirationMillis >= 0) {
+            return expirationMillis;
+        }
+
+        String legacyDateString = json.optString(JSON_LEGACY_EXPIRATION_KEY, null);
+        if (legacyDateString == null) {
+            throw new IOException("Saved token has no expiration time.");
+        }
+
+        return DateFormat.getDateTimeInstance().parse(legacyDateString).getTime();
     }
 
     /**
-     * Helper function. Returns a Date n seconds after date.
+     * Private helper class - an immutable pairing of a token with the date it needs a refresh.
+     * Cache items swap whole snapshots when their token changes, so readers can use them without taking a lock.
      */
-    private static final Date getDateSecondsAfter(Date date, int seconds) {
-        Calendar calendar = Calendar.getInstance(); // sets time to current
-        if (date != null) {
-            calendar.setTime(date);
+    private static final class TokenSnapshot {
+        final String mToken;
+        final long mCloseToExpirationMillis; // Actual expiration time is used less than this, so just cache this instead
+
+        TokenSnapshot(String token, long closeToExpirationMillis) {
+            mToken = token;
+            mCloseToExpirationMillis = closeToExpirationMillis;
+        }
+
+        boolean needsRefresh() {
+            return mCloseToExpirationMillis < currentTimeMillis();
         }
-        calendar.add(Calendar.SECOND, seconds);
-        return calendar.getTime();
     }
 
     /**
-     * Private helper class wrapping a cached access token. Responsible for refreshing it on-demand.
+     * Private helper class wrapping a cached access token. Responsible for refreshing it on-demand. Can translate to/from json format.
      */
     private class MSATokenCacheItem {
-        protected String mToken;
-        protected Date mCloseToExpirationDate; // Actual expiration date is used less than this, so just cache this instead
+        private static final String JSON_ACCESS_TOKEN_KEY = "access_token";
+
+        protected volatile TokenSnapshot mSnapshot;
         protected final MSATokenRequest mRefreshRequest;
 
+        // Scopes the token was granted, parsed once here so that looking for a token covering other scopes does not split strings
+        protected final Set<String> mScopes;
+
+        // Callers waiting on the in-flight refresh, if any. All of them share a single refresh and complete together.
+        private final List<AsyncOperation<String>> mRefreshWaiters = new ArrayList<>();
+
+        // Background refresh scheduled shortly before mCloseToExpirationMillis, and whether the token was asked for since it was last set.
+        private ScheduledFuture<?> mScheduledRefresh = null;
+        private volatile boolean mUsedSinceRefresh = false;
+
         public MSATokenCacheItem(String token, int expiresInSeconds, MSATokenRequest refreshRequest) {
-            mToken = token;
-            mCloseToExpirationDate = getDateSecondsAfterNow(expiresInSeconds - getCloseToExpirySeconds());
+            mSnapshot = new TokenSnapshot(token, getMillisSecondsAfterNow(expiresInSeconds - getCloseToExpirySeconds()));
             mRefreshRequest = refreshRequest;
+            mScopes = parseScopes(refreshRequest.getScope());
+        }
+
+        public MSATokenCacheItem(JSONObject json, MSATokenRequest refreshRequest) throws IOException, ParseException {
+            this(null, 0, refreshRequest);
+
+            String token = json.optString(JSON_ACCESS_TOKEN_KEY, null);
+            if (token == null) {
+                throw new IOException("Saved access token was improperly formatted.");
+            }
+
+            long expirationMillis = readSavedExpirationMillis(json);
+            mSnapshot = new TokenSnapshot(token, expirationMillis - TimeUnit.SECONDS.toMillis(getCloseToExpirySeconds()));
         }
 
         /**
@@ -104,9 +184,9 @@ final class MSATokenCache {
         }
 
         /**
-         * Returns the number of seconds to wait before retrying, when a refresh fails with a transient error.
+         * Returns the longest time in seconds to wait before retrying, when a refresh fails with a transient error.
          */
-        protected long getRetrySeconds() {
+        protected long getMaxRetrySeconds() {
             return MSA_ACCESS_TOKEN_RETRY_SECONDS; // Base class expects access tokens
         }
 
@@ -119,95 +199,311 @@ final class MSATokenCache {
             return MSATokenCache.this.getRefreshTokenAsync();
         }
 
+        /**
+         * Returns whether this item should be refreshed in the background before it goes stale.
+         * Access tokens are only kept warm if they have been asked for since they were last refreshed, so unused scopes are left to lapse.
+         */
+        protected boolean wantsProactiveRefresh() {
+            return mUsedSinceRefresh;
+        }
+
+        /**
+         * Returns whether a token in need of a refresh, but not yet expired, is handed out right away while it is refreshed in the background.
+         * Access tokens are still good for a few minutes when they start needing a refresh, so callers need not wait on the network.
+         */
+        protected boolean servesStaleWhileRevalidating() {
+            return true;
+        }
+
         /**
          * Steps to complete after a successful refresh.
          * For access tokens, sets the new token and new expiration.
-         * For refresh tokens, marks current access tokens as expired, and caches the refresh token in persistent storage.
+         * For refresh tokens, also marks current access tokens as expired.
+         * The caller persists the new token afterwards, outside of this item's lock.
          */
         protected synchronized void onSuccessfulRefresh(MSATokenRequest.Result result) {
             Log.i(TAG, "Successfully refreshed access token.");
-            mToken = result.getAccessToken();
-            mCloseToExpirationDate = getDateSecondsAfterNow(result.getExpiresIn() - getCloseToExpirySeconds());
+            mSnapshot = new TokenSnapshot(result.getAccessToken(), getMillisSecondsAfterNow(result.getExpiresIn() - getCloseToExpirySeconds()));
         }
 
         /**
          * Private helper - asynchronously fetches the token held by this item.
          * If the token is close to expiry, refreshes it first.
-         * If this refresh fails due to transient error, recursively retries up to remainingRetries times to refresh.
+         * If this refresh fails due to transient error, recursively retries up to remainingRetries times to refresh,
+         * backing off as sRetryPolicy decides. While the policy's circuit is open, fails fast instead of sending a request.
          *
          * @param operation         AsyncOperation to return the token on
          * @param remainingRetries  number of times to retry refreshing, in the case of transient error
+         * @param forceRefresh      whether to refresh even if the token is not yet close to expiry
          * @return the operation that was passed in
          */
-        private AsyncOperation<String> _getTokenAsyncInternal(final AsyncOperation<String> operation, final int remainingRetries) {
-            if (!needsRefresh()) {
-                operation.complete(mToken); // Already have a non-stale token, can just return with it
+        private AsyncOperation<String> _getTokenAsyncInternal(
+            final AsyncOperation<String> operation, final int remainingRetries, final boolean forceRefresh) {
+            TokenSnapshot snapshot = mSnapshot;
+            if (!forceRefresh && !snapshot.needsRefresh()) {
+                operation.complete(snapshot.mToken); // Already have a non-stale token, can just return with it
+                return operation;
+            }
+
+            if (!mConnectivity.isOnline()) {
+                Log.i(TAG, "Device is offline, holding the token refresh until it is back online.");
+                parkRefresh(operation, remainingRetries, forceRefresh);
                 return operation;
             }
 
-            getRefreshTokenAsync()
-                .thenComposeAsync(new AsyncOperation.ResultFunction<String, AsyncOperation<MSATokenRequest.Result>>() {
+            // The refresh token is usually at hand already, in which case the request is started right here
+            SigninHelperExecutors
+                .thenCompose(getRefreshTokenAsync(), new AsyncOperation.ResultFunction<String, AsyncOperation<MSATokenRequest.Result>>() {
                     @Override
                     public AsyncOperation<MSATokenRequest.Result> apply(String refreshToken) {
+                        if (refreshToken == null) {
+                            // The refresh token item has already retried, and handled the failure
+                            Log.e(TAG, "No refresh token available to refresh with.");
+                            return AsyncOperation.completedFuture(null);
+                        }
+
+                        if (!sRetryPolicy.allowRequest()) {
+                            Log.e(TAG, "Token endpoint is failing, not attempting a refresh.");
+                            return AsyncOperation.completedFuture(null);
+                        }
+
                         return mRefreshRequest.requestAsync(refreshToken);
                     }
                 })
                 .thenAcceptAsync(new AsyncOperation.ResultConsumer<MSATokenRequest.Result>() {
                     @Override
                     public void accept(MSATokenRequest.Result result) {
+                        if (result == null) {
+                            operation.complete(null); // No request was sent
+                            return;
+                        }
+
                         switch (result.getStatus()) {
                         case SUCCESS:
+                            sRetryPolicy.onEndpointReachable();
                             onSuccessfulRefresh(result);
-                            operation.complete(mToken);
+                            scheduleProactiveRefresh();
+                            MSATokenCache.this.trySaveTokens();
+                            operation.complete(mSnapshot.mToken);
                             break;
 
                         case TRANSIENT_FAILURE:
+                            if (!mConnectivity.isOnline()) {
+                                // Lost the connection mid-request, which says nothing about the endpoint, so don't use up a retry on it
+                                Log.i(TAG, "Device went offline while refreshing token, holding the refresh until it is back online.");
+                                sRetryPolicy.onRequestAbandoned();
+                                parkRefresh(operation, remainingRetries, forceRefresh);
+                                break;
+                            }
+
+                            sRetryPolicy.onEndpointFailure();
+
                             // Recursively retry the refresh, if there are still remaining retries
                             if (remainingRetries <= 0) {
                                 Log.e(TAG, "Reached max number of retries for refreshing token.");
                                 operation.complete(null);
 
                             } else {
-                                Log.i(TAG, "Transient error while refreshing token, retrying in " + getRetrySeconds() + "seconds...");
+                                long retryDelayMillis = sRetryPolicy.getRetryDelayMillis(
+                                    TOKEN_REFRESH_MAX_RETRIES - remainingRetries, TimeUnit.SECONDS.toMillis(getMaxRetrySeconds()));
+                                Log.i(TAG, "Transient error while refreshing token, retrying in " + retryDelayMillis + "ms...");
+                                SigninHelperMetrics.reportTokenRefreshRetry(TOKEN_REFRESH_MAX_RETRIES - remainingRetries, retryDelayMillis);
                                 sRetryExecutor.schedule(new Runnable() {
                                     @Override
                                     public void run() {
-                                        _getTokenAsyncInternal(operation, remainingRetries - 1);
+                                        _getTokenAsyncInternal(operation, remainingRetries - 1, forceRefresh);
                                     }
-                                }, getRetrySeconds(), TimeUnit.SECONDS);
+                                }, retryDelayMillis, TimeUnit.MILLISECONDS);
                             }
                             break;
 
                         default: // PERMANENT_FAILURE
+                            sRetryPolicy.onEndpointReachable();
                             Log.e(TAG, "Permanent error occurred while refreshing token.");
                             MSATokenCache.this.onPermanentFailure();
                             operation.complete(null);
                             break;
                         }
                     }
+                }, SigninHelperExecutors.getCallbackExecutor())
+                .whenComplete(new AsyncOperation.ResultBiConsumer<Void, Throwable>() {
+                    @Override
+                    public void accept(Void result, Throwable throwable) {
+                        // A stage threw, e.g. an executor rejected it, rather than producing a result. Treat it as a transient failure,
+                        // and complete the operation regardless, so that callers waiting on this refresh are not stranded.
+                        if (throwable == null || operation.isDone()) {
+                            return;
+                        }
+
+                        Log.e(TAG, "Unexpected error while refreshing token: \"" + throwable.getLocalizedMessage() + "\"");
+                        sRetryPolicy.onEndpointFailure();
+                        operation.complete(null);
+                    }
                 });
 
             return operation;
         }
 
+        /**
+         * Private helper - resumes a refresh once the device is back online, with the same number of retries it had left.
+         */
+        private void parkRefresh(final AsyncOperation<String> operation, final int remainingRetries, final boolean forceRefresh) {
+            mConnectivity.runWhenOnline(new Runnable() {
+                @Override
+                public void run() {
+                    _getTokenAsyncInternal(operation, remainingRetries, forceRefresh);
+                }
+            });
+        }
+
         /**
          * Asynchronously fetches the token held by this item, refreshing it if necessary.
+         * A fresh token is returned on an already-completed operation without taking any lock.
+         * If servesStaleWhileRevalidating(), or the device is offline, a token that needs a refresh but has not expired
+         * is returned the same way, and a refresh is started in the background (held until the device is back online).
+         * Concurrent callers that find the token in need of a refresh join the refresh already in flight, rather than starting their own.
          */
         public AsyncOperation<String> getTokenAsync() {
-            AsyncOperation<String> ret = new AsyncOperation<String>();
-            return _getTokenAsyncInternal(ret, TOKEN_REFRESH_MAX_RETRIES);
+            mUsedSinceRefresh = true;
+
+            TokenSnapshot snapshot = mSnapshot;
+            if (!snapshot.needsRefresh()) {
+                return AsyncOperation.completedFuture(snapshot.mToken);
+            }
+
+            if ((servesStaleWhileRevalidating() || !mConnectivity.isOnline()) && getExpirationMillis(snapshot) > currentTimeMillis()) {
+                Log.i(TAG, "Token is close to expiry, returning it while refreshing in the background.");
+                getTokenAsync(false);
+                return AsyncOperation.completedFuture(snapshot.mToken);
+            }
+
+            return getTokenAsync(false);
+        }
+
+        /**
+         * Private helper - fetches the token, joining or starting a refresh if the token needs one (or forceRefresh is set).
+         */
+        private AsyncOperation<String> getTokenAsync(boolean forceRefresh) {
+            final AsyncOperation<String> ret = new AsyncOperation<String>();
+            synchronized (this) {
+                TokenSnapshot snapshot = mSnapshot;
+                if (!forceRefresh && !snapshot.needsRefresh()) {
+                    ret.complete(snapshot.mToken); // Refreshed while waiting for the lock, can just return with it
+                    return ret;
+                }
+
+                mRefreshWaiters.add(ret);
+                if (mRefreshWaiters.size() > 1) {
+                    return ret; // A refresh is already in flight, it will complete this operation too
+                }
+            }
+
+            final AsyncOperation<String> refreshOperation = new AsyncOperation<String>();
+            refreshOperation.whenComplete(new AsyncOperation.ResultBiConsumer<String, Throwable>() {
+                @Override
+                public void accept(String token, Throwable throwable) {
+                    onRefreshCompleted(token, throwable);
+                }
+            });
+
+            _getTokenAsyncInternal(refreshOperation, TOKEN_REFRESH_MAX_RETRIES, forceRefresh);
+            return ret;
+        }
+
+        /**
+         * Schedules a background refresh of this item shortly before it is considered in need of a refresh,
+         * so that callers find a fresh token in the cache instead of waiting on the network.
+         * Replaces any previously scheduled refresh.
+         */
+        public synchronized void scheduleProactiveRefresh() {
+            cancelProactiveRefresh();
+
+            long jitterMillis = (long)(Math.random() * TimeUnit.SECONDS.toMillis(MSA_PROACTIVE_REFRESH_JITTER_SECONDS));
+            long delayMillis = mSnapshot.mCloseToExpirationMillis - currentTimeMillis() -
+                               TimeUnit.SECONDS.toMillis(MSA_PROACTIVE_REFRESH_LEAD_SECONDS) - jitterMillis;
+
+            mScheduledRefresh = sRetryExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onProactiveRefreshDue();
+                }
+            }, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Cancels the scheduled background refresh of this item, if any.
+         */
+        public synchronized void cancelProactiveRefresh() {
+            if (mScheduledRefresh != null) {
+                mScheduledRefresh.cancel(false);
+                mScheduledRefresh = null;
+            }
+        }
+
+        /**
+         * Private helper - runs on sRetryExecutor when the scheduled background refresh is due.
+         */
+        private void onProactiveRefreshDue() {
+            synchronized (this) {
+                mScheduledRefresh = null;
+                if (!wantsProactiveRefresh()) {
+                    Log.i(TAG, "Token has not been used since its last refresh, skipping background refresh.");
+                    return;
+                }
+                mUsedSinceRefresh = false;
+            }
+
+            Log.i(TAG, "Refreshing token in the background ahead of expiry.");
+            getTokenAsync(true);
+        }
+
+        /**
+         * Private helper - completes every caller that was waiting on the refresh that just finished.
+         */
+        private void onRefreshCompleted(String token, Throwable throwable) {
+            List<AsyncOperation<String>> waiters;
+            synchronized (this) {
+                waiters = new ArrayList<>(mRefreshWaiters);
+                mRefreshWaiters.clear();
+            }
+
+            Log.i(TAG, "Token refresh completed for " + waiters.size() + " waiter(s).");
+            for (AsyncOperation<String> waiter : waiters) {
+                if (throwable != null) {
+                    waiter.completeExceptionally(throwable);
+                } else {
+                    waiter.complete(token);
+                }
+            }
         }
 
         public boolean needsRefresh() {
-            return mCloseToExpirationDate.before(new Date());
+            return mSnapshot.needsRefresh();
         }
 
         public boolean isExpired() {
-            return getDateSecondsAfter(mCloseToExpirationDate, getCloseToExpirySeconds()).before(new Date());
+            return getExpirationMillis(mSnapshot) < currentTimeMillis();
         }
 
         public synchronized void markExpired() {
-            mCloseToExpirationDate = new Date(0); // Start of epoch
+            mSnapshot = new TokenSnapshot(mSnapshot.mToken, 0); // Start of epoch
+            cancelProactiveRefresh();             // The next caller refreshes on demand instead
+        }
+
+        /**
+         * Returns the actual expiration time of the given snapshot of this item, in epoch millis.
+         */
+        protected long getExpirationMillis(TokenSnapshot snapshot) {
+            return snapshot.mCloseToExpirationMillis + TimeUnit.SECONDS.toMillis(getCloseToExpirySeconds());
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            TokenSnapshot snapshot = mSnapshot;
+
+            JSONObject ret = new JSONObject();
+            ret.put(JSON_ACCESS_TOKEN_KEY, snapshot.mToken);
+            ret.put(JSON_EXPIRATION_KEY, getExpirationMillis(snapshot));
+            return ret;
         }
     }
 
@@ -216,53 +512,66 @@ final class MSATokenCache {
      */
     private final class MSARefreshTokenCacheItem extends MSATokenCacheItem {
         private static final String JSON_TOKEN_KEY = "refresh_token";
-        private static final String JSON_EXPIRATION_KEY = "expires";
 
         public MSARefreshTokenCacheItem(String token, int expiresInSeconds, MSATokenRequest refreshRequest) {
             super(token, expiresInSeconds, refreshRequest);
         }
 
-        public MSARefreshTokenCacheItem(JSONObject json) throws IOException, JSONException, ParseException {
+        public MSARefreshTokenCacheItem(JSONObject json) throws IOException, JSONException {
             super(null, 0, new MSATokenRequest(mClientId, MSATokenRequest.GrantType.REFRESH, MSA_OFFLINE_ACCESS_SCOPE, null));
 
-            mToken = json.optString(JSON_TOKEN_KEY);
-            String dateString = json.optString(JSON_EXPIRATION_KEY);
-            if (mToken == null || dateString == null) {
+            String token = json.optString(JSON_TOKEN_KEY);
+            if (token == null) {
                 throw new IOException("Saved refresh token was improperly formatted.");
             }
 
-            Date expirationDate = DateFormat.getDateTimeInstance().parse(dateString);
-            mCloseToExpirationDate = getDateSecondsAfter(expirationDate, -MSA_REFRESH_TOKEN_CLOSE_TO_EXPIRY_SECONDS);
+            long closeToExpirationMillis;
+            try {
+                closeToExpirationMillis =
+                    readSavedExpirationMillis(json) - TimeUnit.SECONDS.toMillis(MSA_REFRESH_TOKEN_CLOSE_TO_EXPIRY_SECONDS);
+            } catch (ParseException e) {
+                // A legacy date string saved under a different locale. Rather than forcing the user to sign in again,
+                // refresh right away: if the token turns out to be expired, the refresh fails permanently and clears the cache.
+                Log.e(TAG, "Could not parse saved refresh token expiration. \"" + e.getLocalizedMessage() + "\" Refreshing on first use.");
+                closeToExpirationMillis = currentTimeMillis();
+            }
+
+            mSnapshot = new TokenSnapshot(token, closeToExpirationMillis);
         }
 
         protected int getCloseToExpirySeconds() {
             return MSA_REFRESH_TOKEN_CLOSE_TO_EXPIRY_SECONDS;
         }
 
-        protected long getRetrySeconds() {
+        protected long getMaxRetrySeconds() {
             return MSA_REFRESH_TOKEN_RETRY_SECONDS;
         }
 
         protected AsyncOperation<String> getRefreshTokenAsync() {
-            return AsyncOperation.completedFuture(mToken);
+            return AsyncOperation.completedFuture(mSnapshot.mToken);
+        }
+
+        protected boolean wantsProactiveRefresh() {
+            return true; // Always keep the refresh token alive, it is needed by every access token
+        }
+
+        protected boolean servesStaleWhileRevalidating() {
+            return false; // A refresh marks every access token expired, so it must finish before the refresh token is used again
         }
 
         protected synchronized void onSuccessfulRefresh(MSATokenRequest.Result result) {
             Log.i(TAG, "Successfully refreshed refresh token.");
-            mToken = result.getRefreshToken();
-            mCloseToExpirationDate =
-                getDateSecondsAfterNow(MSA_REFRESH_TOKEN_EXPIRATION_SECONDS - MSA_REFRESH_TOKEN_CLOSE_TO_EXPIRY_SECONDS);
+            mSnapshot = new TokenSnapshot(result.getRefreshToken(),
+                getMillisSecondsAfterNow(MSA_REFRESH_TOKEN_EXPIRATION_SECONDS - MSA_REFRESH_TOKEN_CLOSE_TO_EXPIRY_SECONDS));
             MSATokenCache.this.markAccessTokensExpired();
-            MSATokenCache.this.trySaveRefreshToken();
         }
 
-        public synchronized JSONObject toJSON() throws JSONException {
-            // Get the actual expiration date
-            Date expirationDate = getDateSecondsAfter(mCloseToExpirationDate, MSA_REFRESH_TOKEN_CLOSE_TO_EXPIRY_SECONDS);
+        public JSONObject toJSON() throws JSONException {
+            TokenSnapshot snapshot = mSnapshot;
 
             JSONObject ret = new JSONObject();
-            ret.put(JSON_TOKEN_KEY, mToken);
-            ret.put(JSON_EXPIRATION_KEY, DateFormat.getDateTimeInstance().format(expirationDate));
+            ret.put(JSON_TOKEN_KEY, snapshot.mToken);
+            ret.put(JSON_EXPIRATION_KEY, getExpirationMillis(snapshot));
             return ret;
         }
     }
@@ -274,22 +583,80 @@ final class MSATokenCache {
 
     private final String mClientId;
     private final Context mContext;
+    private final ConnectivityMonitor mConnectivity;
+
+    // Set once tokens for an account are loaded or set
+    private volatile String mAccountId = null;
 
-    private MSARefreshTokenCacheItem mCachedRefreshToken = null;
-    private final Map<String, MSATokenCacheItem> mCachedAccessTokens = new ArrayMap<>();
+    // Readers use these without locking the cache; writers that must stay consistent with persistent storage still lock it.
+    private volatile MSARefreshTokenCacheItem mCachedRefreshToken = null;
+    private final Map<String, MSATokenCacheItem> mCachedAccessTokens = new ConcurrentHashMap<>();
 
     private final Collection<Listener> mListeners = new ArrayList<>();
 
+    // Requests in flight for access tokens that are not cached yet, by scope, so that concurrent first fetches share one request.
+    // Guarded by itself.
+    private final Map<String, AsyncOperation<String>> mPendingAccessTokenRequests = new HashMap<>();
+
+    // Whether a helper sharing this cache has already prefetched its access tokens. Guarded by the cache lock.
+    private boolean mPrefetchClaimed = false;
+
+    // Caches handed out by acquire(), one per account of each app, so that everyone in the process holding tokens for an account
+    // shares them: each token is refreshed once, and only one cache writes the account's saved tokens.
+    private static final Map<String, MSATokenCache> sCaches = new HashMap<>();
+
+    // Registry bookkeeping, guarded by the MSATokenCache class lock. Caches not handed out by acquire() have no registry key.
+    private String mRegistryKey = null;
+    private int mRefCount = 0;
+
     public MSATokenCache(String clientId, Context context) {
         mClientId = clientId;
         mContext = context;
+        mConnectivity = ConnectivityMonitor.getInstance(context);
+    }
+
+    /**
+     * Returns the cache shared by everyone in the process holding tokens for the given account of the given app, creating it if needed.
+     * Every call must be balanced by a call to release() once the cache is no longer used.
+     */
+    public static MSATokenCache acquire(String clientId, String accountId, Context context) {
+        String key = clientId + "/" + accountId;
+        synchronized (MSATokenCache.class) {
+            MSATokenCache cache = sCaches.get(key);
+            if (cache == null) {
+                cache = new MSATokenCache(clientId, context.getApplicationContext());
+                cache.mRegistryKey = key;
+                sCaches.put(key, cache);
+            }
+
+            cache.mRefCount++;
+            return cache;
+        }
+    }
+
+    /**
+     * Gives up a reference to a cache returned by acquire(). Once the last reference is given up, the cache stops refreshing tokens
+     * in the background and is dropped from the registry. Its saved tokens are left in place for the next session.
+     */
+    public void release() {
+        synchronized (MSATokenCache.class) {
+            if (mRegistryKey == null || --mRefCount > 0) {
+                return;
+            }
+
+            sCaches.remove(mRegistryKey);
+            mRegistryKey = null;
+        }
+
+        Log.i(TAG, "Last reference to token cache released, stopping background refreshes.");
+        cancelProactiveRefreshes();
     }
 
     /**
      * Returns a file in application-specific storage that's used to persist the refresh token across sessions.
      */
-    private File getRefreshTokenSaveFile() throws IOException {
-        Context appContext = mContext.getApplicationContext();
+    private static File getRefreshTokenSaveFile(Context context) throws IOException {
+        Context appContext = context.getApplicationContext();
         File appDirectory = appContext.getDir(appContext.getPackageName(), Context.MODE_PRIVATE);
         if (appDirectory == null) {
             throw new IOException("Could not access app directory.");
@@ -299,81 +666,137 @@ final class MSATokenCache {
     }
 
     /**
-     * Tries to save the current refresh token to persistent storage.
+     * Returns the storage backing the save file. It is shared with any other cache in the process using the same file.
      */
-    private void trySaveRefreshToken() {
-        Log.i(TAG, "Trying to save refresh token...");
+    private static MSATokenCacheStorage getStorage(Context context) throws IOException {
+        return MSATokenCacheStorage.forFile(getRefreshTokenSaveFile(context));
+    }
+
+    private MSATokenCacheStorage getStorage() throws IOException {
+        return getStorage(mContext);
+    }
+
+    /**
+     * Tries to save the current refresh token, along with any access tokens that are not in need of a refresh, to persistent storage.
+     * Only updates the in-memory copy of the save file; the file itself is written in the background.
+     */
+    private synchronized void trySaveTokens() {
+        MSARefreshTokenCacheItem cachedRefreshToken = mCachedRefreshToken;
+        String accountId = mAccountId;
+        if (cachedRefreshToken == null || accountId == null) {
+            return; // Tokens were cleared in the meantime, nothing to save
+        }
+
+        Log.i(TAG, "Trying to save tokens...");
         try {
-            File file = getRefreshTokenSaveFile();
-            JSONObject json = file.exists() ? new JSONObject(IOUtil.readUTF8Stream(new FileInputStream(file))) : new JSONObject();
+            // Access tokens marked as expired would be refreshed on first use anyway, so there is no point in restoring them
+            JSONObject accessTokensJson = new JSONObject();
+            for (Map.Entry<String, MSATokenCacheItem> entry : mCachedAccessTokens.entrySet()) {
+                if (!entry.getValue().needsRefresh()) {
+                    accessTokensJson.put(entry.getKey(), entry.getValue().toJSON());
+                }
+            }
 
-            json.put(mClientId, mCachedRefreshToken.toJSON());
-            IOUtil.writeUTF8Stream(new FileOutputStream(file), json.toString());
+            JSONObject innerJson = cachedRefreshToken.toJSON();
+            innerJson.put(JSON_ACCESS_TOKENS_KEY, accessTokensJson);
+            getStorage().write(mClientId, accountId, innerJson);
 
-            Log.i(TAG, "Saved refresh token.");
+            Log.i(TAG, "Saved refresh token and " + accessTokensJson.length() + " access token(s).");
 
         } catch (IOException | JSONException e) {
-            Log.e(TAG, "Exception while saving refresh token. \"" + e.getLocalizedMessage() + "\" Will not save.");
+            Log.e(TAG, "Exception while saving tokens. \"" + e.getLocalizedMessage() + "\" Will not save.");
         }
     }
 
     /**
-     * Tries to read a saved refresh token from persistent storage, and return it as an MSARefreshTokenItem.
+     * Tries to read the saved tokens for the given account of this app from persistent storage, and return them in json format.
+     * Tokens saved before multiple accounts were supported are claimed by the account whose id was saved with them.
      */
-    private MSARefreshTokenCacheItem tryReadSavedRefreshToken() {
-        Log.i(TAG, "Trying to read saved refresh token...");
+    private JSONObject tryReadSavedTokens(String accountId) {
+        Log.i(TAG, "Trying to read saved tokens...");
         try {
-            File file = getRefreshTokenSaveFile();
-
-            if (!file.exists()) {
-                Log.i(TAG, "No saved refresh token was found.");
-                return null;
+            MSATokenCacheStorage storage = getStorage();
+            JSONObject innerJson = storage.read(mClientId, accountId);
+
+            if (innerJson == null && accountId.equals(readSavedAccountId())) {
+                innerJson = storage.read(mClientId, MSATokenCacheStorage.LEGACY_ACCOUNT_ID);
+                if (innerJson != null) {
+                    Log.i(TAG, "Claiming tokens saved before multiple accounts were supported.");
+                    storage.write(mClientId, accountId, innerJson);
+                    storage.remove(mClientId, MSATokenCacheStorage.LEGACY_ACCOUNT_ID);
+                }
             }
 
-            JSONObject json = new JSONObject(IOUtil.readUTF8Stream(new FileInputStream(file)));
-            JSONObject innerJson = json.optJSONObject(mClientId);
-
             if (innerJson == null) {
-                Log.i(TAG, "Could not read saved refresh token.");
+                Log.i(TAG, "No saved refresh token was found.");
                 return null;
             }
 
-            Log.i(TAG, "Read saved refresh token.");
-            return new MSARefreshTokenCacheItem(innerJson);
+            Log.i(TAG, "Read saved tokens.");
+            return innerJson;
 
-        } catch (IOException | JSONException | ParseException e) {
-            Log.e(TAG, "Exception reading saved refresh token. \"" + e.getLocalizedMessage() + "\"");
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Exception reading saved tokens. \"" + e.getLocalizedMessage() + "\"");
             return null;
         }
     }
 
     /**
-     * Tries to delete the saved refresh token for this app in persistent storage.
+     * Tries to parse a saved refresh token from the json read from persistent storage, and return it as an MSARefreshTokenItem.
      */
-    private void tryClearSavedRefreshToken() {
-        Log.i(TAG, "Trying to delete saved refresh token...");
+    private MSARefreshTokenCacheItem tryParseSavedRefreshToken(JSONObject json) {
         try {
-            File file = getRefreshTokenSaveFile();
-            if (!file.exists()) {
-                Log.i(TAG, "No saved refresh token was found.");
-                return;
-            }
+            return new MSARefreshTokenCacheItem(json);
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Exception reading saved refresh token. \"" + e.getLocalizedMessage() + "\"");
+            return null;
+        }
+    }
 
-            try {
-                // Try to remove just a section of the json corresponding to client id
-                JSONObject json = new JSONObject(IOUtil.readUTF8Stream(new FileInputStream(file)));
-                json.remove(mClientId);
+    /**
+     * Restores the saved access tokens read from persistent storage that are not yet in need of a refresh.
+     */
+    private void restoreSavedAccessTokens(JSONObject json) {
+        JSONObject accessTokensJson = json.optJSONObject(JSON_ACCESS_TOKENS_KEY);
+        if (accessTokensJson == null) {
+            Log.i(TAG, "No saved access tokens were found.");
+            return;
+        }
 
-                if (json.length() <= 0) {
-                    file.delete(); // Just delete the file if the json would be empty
-                } else {
-                    IOUtil.writeUTF8Stream(new FileOutputStream(file), json.toString());
+        int restoredCount = 0;
+        Iterator<String> scopes = accessTokensJson.keys();
+        while (scopes.hasNext()) {
+            String scope = scopes.next();
+            try {
+                MSATokenRequest refreshRequest = new MSATokenRequest(mClientId, MSATokenRequest.GrantType.REFRESH, scope, null);
+                MSATokenCacheItem savedAccessToken = new MSATokenCacheItem(accessTokensJson.getJSONObject(scope), refreshRequest);
+                if (savedAccessToken.needsRefresh()) {
+                    continue; // Would be refreshed on first use anyway
                 }
-            } catch (JSONException e) {
-                // Failed to parse the json, just delete everything
-                file.delete();
+
+                savedAccessToken.scheduleProactiveRefresh();
+                mCachedAccessTokens.put(scope, savedAccessToken);
+                restoredCount++;
+
+            } catch (IOException | JSONException | ParseException e) {
+                Log.e(TAG, "Exception reading saved access token for scope " + scope + ". \"" + e.getLocalizedMessage() + "\"");
             }
+        }
 
+        Log.i(TAG, "Restored " + restoredCount + " saved access token(s).");
+    }
+
+    /**
+     * Tries to delete the saved refresh token for the given account of this app in persistent storage.
+     */
+    private void tryClearSavedRefreshToken(String accountId) {
+        Log.i(TAG, "Trying to delete saved refresh token...");
+        try {
+            // Removes just the section of the json corresponding to client id and account. Written right away rather than
+            // in the background, so that a process killed right after signing out cannot come back signed in.
+            MSATokenCacheStorage storage = getStorage();
+            storage.remove(mClientId, accountId);
+            storage.flush();
             Log.i(TAG, "Deleted saved refresh token.");
 
         } catch (IOException e) { Log.e(TAG, "Failed to delete saved refresh token. \"" + e.getLocalizedMessage() + "\""); }
@@ -382,7 +805,7 @@ final class MSATokenCache {
     /**
      * Marks access tokens as expired, such that a refresh is performed before returning, when the access token is next requested.
      */
-    private synchronized void markAccessTokensExpired() {
+    private void markAccessTokensExpired() {
         for (MSATokenCacheItem cachedAccessToken : mCachedAccessTokens.values()) {
             cachedAccessToken.markExpired();
         }
@@ -392,40 +815,280 @@ final class MSATokenCache {
      * Calls back any listeners that the cache has encountered a permanent failure, and that they should perform any needed error-handling.
      */
     private void onPermanentFailure() {
+        SigninHelperMetrics.reportPermanentFailure();
         clearTokens();
-        for (Listener listener : mListeners) {
+
+        List<Listener> listeners;
+        synchronized (this) {
+            listeners = new ArrayList<>(mListeners); // Listeners may come and go while being called, as the cache is shared
+        }
+        for (Listener listener : listeners) {
             listener.onTokenCachePermanentFailure();
         }
     }
 
-    public void setRefreshToken(String refreshToken) {
+    /**
+     * Sets the refresh token of the given account, which this cache holds tokens for from now on.
+     */
+    public void setRefreshToken(String accountId, String refreshToken) {
         MSATokenRequest refreshRequest = new MSATokenRequest(mClientId, MSATokenRequest.GrantType.REFRESH, MSA_OFFLINE_ACCESS_SCOPE, null);
 
         synchronized (this) {
+            mAccountId = accountId;
+            if (mCachedRefreshToken != null) {
+                mCachedRefreshToken.cancelProactiveRefresh();
+            }
             mCachedRefreshToken = new MSARefreshTokenCacheItem(refreshToken, MSA_REFRESH_TOKEN_EXPIRATION_SECONDS, refreshRequest);
+            mCachedRefreshToken.scheduleProactiveRefresh();
             markAccessTokensExpired();
-            trySaveRefreshToken();
+            trySaveTokens();
         }
     }
 
     public void setAccessToken(String accessToken, String scope, int expiresInSeconds) {
         MSATokenRequest refreshRequest = new MSATokenRequest(mClientId, MSATokenRequest.GrantType.REFRESH, scope, null);
 
-        synchronized (this) {
-            mCachedAccessTokens.put(scope, new MSATokenCacheItem(accessToken, expiresInSeconds, refreshRequest));
+        MSATokenCacheItem cachedAccessToken = new MSATokenCacheItem(accessToken, expiresInSeconds, refreshRequest);
+        cachedAccessToken.scheduleProactiveRefresh();
+
+        MSATokenCacheItem previousAccessToken = mCachedAccessTokens.put(scope, cachedAccessToken);
+        if (previousAccessToken != null) {
+            previousAccessToken.cancelProactiveRefresh();
         }
+
+        trySaveTokens();
     }
 
-    public synchronized AsyncOperation<String> getRefreshTokenAsync() {
-        if (mCachedRefreshToken != null) {
-            return mCachedRefreshToken.getTokenAsync();
+    public AsyncOperation<String> getRefreshTokenAsync() {
+        MSARefreshTokenCacheItem cachedRefreshToken = mCachedRefreshToken;
+        if (cachedRefreshToken != null) {
+            return cachedRefreshToken.getTokenAsync();
         } else {
             return AsyncOperation.completedFuture(null);
         }
     }
 
-    public synchronized AsyncOperation<String> getAccessTokenAsync(String scope) {
+    /**
+     * Requests an access token for scopes the cache holds no token for yet, and caches it.
+     * Like refreshes, the request goes through sRetryPolicy: it fails fast while the circuit is open, counts toward opening it,
+     * and transient failures are retried with backoff, up to TOKEN_REFRESH_MAX_RETRIES times.
+     * Unlike a failed refresh, a permanent failure leaves the rest of the cache alone, e.g. when the scope was never consented to.
+     * While the device is offline, the request is held until it is back online, the same way refreshes are.
+     * @return an operation that completes with the token, or with null if none could be fetched
+     */
+    public AsyncOperation<String> requestAccessTokenAsync(String scope) {
+        MSATokenRequest request = new MSATokenRequest(mClientId, MSATokenRequest.GrantType.REFRESH, scope, null);
+        return _requestAccessTokenAsyncInternal(new AsyncOperation<String>(), request, scope, TOKEN_REFRESH_MAX_RETRIES);
+    }
+
+    /**
+     * Private helper - sends one attempt of an access token request, scheduling the next one on a transient failure.
+     * @return the operation that was passed in
+     */
+    private AsyncOperation<String> _requestAccessTokenAsyncInternal(
+        final AsyncOperation<String> operation, final MSATokenRequest request, final String scope, final int remainingRetries) {
+        if (!mConnectivity.isOnline()) {
+            Log.i(TAG, "Device is offline, holding the access token request until it is back online.");
+            parkAccessTokenRequest(operation, request, scope, remainingRetries);
+            return operation;
+        }
+
+        SigninHelperExecutors
+            .thenCompose(getRefreshTokenAsync(), new AsyncOperation.ResultFunction<String, AsyncOperation<MSATokenRequest.Result>>() {
+                @Override
+                public AsyncOperation<MSATokenRequest.Result> apply(String refreshToken) {
+                    if (refreshToken == null) {
+                        Log.e(TAG, "No refresh token available to request an access token with.");
+                        return AsyncOperation.completedFuture(null);
+                    }
+
+                    return requestThroughRetryPolicyAsync(request, refreshToken);
+                }
+            })
+            .thenAcceptAsync(new AsyncOperation.ResultConsumer<MSATokenRequest.Result>() {
+                @Override
+                public void accept(MSATokenRequest.Result result) {
+                    if (result == null) {
+                        operation.complete(null); // No request was sent
+                        return;
+                    }
+
+                    switch (result.getStatus()) {
+                    case SUCCESS:
+                        Log.i(TAG, "Successfully fetched access token.");
+                        setAccessToken(result.getAccessToken(), scope, result.getExpiresIn());
+                        operation.complete(result.getAccessToken());
+                        break;
+
+                    case TRANSIENT_FAILURE:
+                        if (!mConnectivity.isOnline()) {
+                            // Lost the connection mid-request, don't use up a retry on it
+                            Log.i(TAG, "Device went offline while fetching access token, holding the request until it is back online.");
+                            parkAccessTokenRequest(operation, request, scope, remainingRetries);
+                            break;
+                        }
+
+                        if (remainingRetries <= 0) {
+                            Log.e(TAG, "Reached max number of retries for fetching access token.");
+                            operation.complete(null);
+                            break;
+                        }
+
+                        long retryDelayMillis = sRetryPolicy.getRetryDelayMillis(
+                            TOKEN_REFRESH_MAX_RETRIES - remainingRetries, TimeUnit.SECONDS.toMillis(MSA_ACCESS_TOKEN_RETRY_SECONDS));
+                        Log.i(TAG, "Transient error while fetching access token, retrying in " + retryDelayMillis + "ms...");
+                        SigninHelperMetrics.reportTokenRefreshRetry(TOKEN_REFRESH_MAX_RETRIES - remainingRetries, retryDelayMillis);
+                        sRetryExecutor.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                _requestAccessTokenAsyncInternal(operation, request, scope, remainingRetries - 1);
+                            }
+                        }, retryDelayMillis, TimeUnit.MILLISECONDS);
+                        break;
+
+                    default: // PERMANENT_FAILURE
+                        Log.e(TAG, "Permanent error occurred while fetching access token.");
+                        operation.complete(null);
+                        break;
+                    }
+                }
+            }, SigninHelperExecutors.getCallbackExecutor())
+            .whenComplete(new AsyncOperation.ResultBiConsumer<Void, Throwable>() {
+                @Override
+                public void accept(Void result, Throwable throwable) {
+                    // A stage threw rather than producing a result, complete the operation regardless so that its callers are not stranded
+                    if (throwable == null || operation.isDone()) {
+                        return;
+                    }
+
+                    Log.e(TAG, "Unexpected error while fetching access token: \"" + throwable.getLocalizedMessage() + "\"");
+                    operation.complete(null);
+                }
+            });
+
+        return operation;
+    }
+
+    /**
+     * Private helper - resumes an access token request once the device is back online, with the same number of retries it had left.
+     */
+    private void parkAccessTokenRequest(
+        final AsyncOperation<String> operation, final MSATokenRequest request, final String scope, final int remainingRetries) {
+        mConnectivity.runWhenOnline(new Runnable() {
+            @Override
+            public void run() {
+                _requestAccessTokenAsyncInternal(operation, request, scope, remainingRetries);
+            }
+        });
+    }
+
+    /**
+     * Sends a request to the token endpoint through sRetryPolicy, like every request to it should be: while the circuit is open,
+     * completes with null without sending anything, and otherwise reports whether the endpoint answered before completing.
+     * A request that fails because the device went offline says nothing about the endpoint, and is reported as abandoned.
+     * @param token authCode for GrantType.CODE, or refresh token for GrantType.REFRESH
+     */
+    public AsyncOperation<MSATokenRequest.Result> requestThroughRetryPolicyAsync(MSATokenRequest request, String token) {
+        if (!sRetryPolicy.allowRequest()) {
+            Log.e(TAG, "Token endpoint is failing, not sending a token request.");
+            return AsyncOperation.completedFuture(null);
+        }
+
+        return request.requestAsync(token).whenComplete(new AsyncOperation.ResultBiConsumer<MSATokenRequest.Result, Throwable>() {
+            @Override
+            public void accept(MSATokenRequest.Result result, Throwable throwable) {
+                if (throwable != null || result.getStatus() == MSATokenRequest.Result.Status.TRANSIENT_FAILURE) {
+                    if (mConnectivity.isOnline()) {
+                        sRetryPolicy.onEndpointFailure();
+                    } else {
+                        sRetryPolicy.onRequestAbandoned();
+                    }
+                } else {
+                    sRetryPolicy.onEndpointReachable();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the request in flight for an access token that is not cached yet, starting it if there is none,
+     * so that callers asking for the same new scope at the same time share a single request.
+     * The request is expected to cache the token before it completes.
+     *
+     * @param scope         space-separated scopes of the token
+     * @param startRequest  starts the request, called only if none is in flight for the scope
+     */
+    public AsyncOperation<String> getOrStartAccessTokenRequest(
+        final String scope, AsyncOperation.Supplier<AsyncOperation<String>> startRequest) {
+        final AsyncOperation<String> pendingRequest;
+        synchronized (mPendingAccessTokenRequests) {
+            AsyncOperation<String> inFlightRequest = mPendingAccessTokenRequests.get(scope);
+            if (inFlightRequest != null) {
+                return inFlightRequest;
+            }
+
+            pendingRequest = new AsyncOperation<String>();
+            mPendingAccessTokenRequests.put(scope, pendingRequest);
+        }
+
+        AsyncOperation<String> request;
+        try {
+            request = startRequest.get();
+        } catch (Throwable throwable) {
+            request = new AsyncOperation<String>();
+            request.completeExceptionally(throwable);
+        }
+
+        request.whenComplete(new AsyncOperation.ResultBiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String token, Throwable throwable) {
+                // The token is cached by now, so callers arriving after this find it in the cache
+                synchronized (mPendingAccessTokenRequests) {
+                    mPendingAccessTokenRequests.remove(scope);
+                }
+
+                if (throwable != null) {
+                    pendingRequest.completeExceptionally(throwable);
+                } else {
+                    pendingRequest.complete(token);
+                }
+            }
+        });
+        return pendingRequest;
+    }
+
+    /**
+     * Returns true the first time it is called for this cache, and again after the tokens are cleared,
+     * so that of all the helpers sharing the cache only one prefetches access tokens.
+     */
+    public synchronized boolean claimPrefetch() {
+        if (mPrefetchClaimed) {
+            return false;
+        }
+
+        mPrefetchClaimed = true;
+        return true;
+    }
+
+    /**
+     * Returns the cached access token for the given space-separated scopes, or null if there is none.
+     * If no token was requested for exactly these scopes, a fresh token granted all of them (and possibly more) is returned instead.
+     */
+    public AsyncOperation<String> getAccessTokenAsync(String scope) {
         MSATokenCacheItem cachedAccessToken = mCachedAccessTokens.get(scope);
+        if (cachedAccessToken == null) {
+            cachedAccessToken = findSupersetAccessToken(scope);
+        }
+
+        // Hits are tokens handed out without waiting, which includes near-expiry tokens served while they are refreshed
+        if (SigninHelperMetrics.isEnabled()) {
+            if (cachedAccessToken != null && !cachedAccessToken.isExpired()) {
+                SigninHelperMetrics.reportAccessTokenCacheHit(scope);
+            } else {
+                SigninHelperMetrics.reportAccessTokenCacheMiss(scope);
+            }
+        }
+
         if (cachedAccessToken != null) {
             return cachedAccessToken.getTokenAsync();
         } else {
@@ -433,6 +1096,30 @@ final class MSATokenCache {
         }
     }
 
+    /**
+     * Private helper - returns a cached access token that does not need a refresh and was granted every one of the given
+     * space-separated scopes, or null if there is none.
+     */
+    private MSATokenCacheItem findSupersetAccessToken(String scope) {
+        Set<String> requestedScopes = parseScopes(scope);
+        for (Map.Entry<String, MSATokenCacheItem> entry : mCachedAccessTokens.entrySet()) {
+            MSATokenCacheItem cachedAccessToken = entry.getValue();
+            if (!cachedAccessToken.needsRefresh() && cachedAccessToken.mScopes.containsAll(requestedScopes)) {
+                Log.i(TAG, "Using access token for \"" + entry.getKey() + "\" to serve \"" + scope + "\".");
+                return cachedAccessToken;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Private helper - splits space-separated scopes into a set.
+     */
+    private static Set<String> parseScopes(String scope) {
+        return new HashSet<>(Arrays.asList(scope.split(" ")));
+    }
+
     public void saveAccountId(String id) {
         // Get the shared preferences
         SharedPreferences preferences = mContext.getSharedPreferences(mContext.getPackageName(), Context.MODE_PRIVATE);
@@ -442,8 +1129,12 @@ final class MSATokenCache {
     }
 
     public String readSavedAccountId() {
+        return readSavedAccountId(mContext);
+    }
+
+    static String readSavedAccountId(Context context) {
         // Get the shared preferences
-        SharedPreferences preferences = mContext.getSharedPreferences(mContext.getPackageName(), Context.MODE_PRIVATE);
+        SharedPreferences preferences = context.getSharedPreferences(context.getPackageName(), Context.MODE_PRIVATE);
 
         // Grab the value of the key with a default value of empty string
         String id = preferences.getString(GUID_ID_KEY, "");
@@ -467,12 +1158,57 @@ final class MSATokenCache {
     }
 
     /**
-     * Tries to load a saved refresh token from disk. If successful, the loaded refresh token is used as this cache's refresh token.
+     * Returns the id of the account this cache holds tokens for, or null if no tokens have been loaded or set.
+     */
+    public String getAccountId() {
+        return mAccountId;
+    }
+
+    /**
+     * Returns the ids of all accounts of the given app with saved tokens.
+     */
+    public static List<String> getSavedAccountIds(String clientId, Context context) {
+        try {
+            List<String> accountIds = getStorage(context).getAccountIds(clientId);
+
+            // Tokens saved before multiple accounts were supported belong to the account whose id was saved with them
+            if (accountIds.remove(MSATokenCacheStorage.LEGACY_ACCOUNT_ID)) {
+                String legacyAccountId = readSavedAccountId(context);
+                if (!legacyAccountId.isEmpty() && !accountIds.contains(legacyAccountId)) {
+                    accountIds.add(legacyAccountId);
+                }
+            }
+            return accountIds;
+
+        } catch (IOException e) {
+            Log.e(TAG, "Exception reading saved account ids. \"" + e.getLocalizedMessage() + "\"");
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Tries to load the saved refresh token of the most recently signed in account from disk.
      * @return Whether a saved refresh token was loaded successfully.
      */
     public boolean loadSavedRefreshToken() {
+        String accountId = readSavedAccountId();
+        return !accountId.isEmpty() && loadSavedRefreshToken(accountId);
+    }
+
+    /**
+     * Tries to load the saved refresh token of the given account from disk. If successful, the loaded refresh token is used as this
+     * cache's refresh token, and any saved access tokens that are still fresh are restored, so that they can be used without a refresh.
+     * @return Whether a saved refresh token was loaded successfully.
+     */
+    public synchronized boolean loadSavedRefreshToken(String accountId) {
+        if (mCachedRefreshToken != null && accountId.equals(mAccountId)) {
+            Log.i(TAG, "Tokens for this account are already loaded.");
+            return true; // Shared cache, loaded through another reference
+        }
+
         Log.i(TAG, "Trying to load saved refresh token...");
-        MSARefreshTokenCacheItem savedRefreshToken = tryReadSavedRefreshToken();
+        JSONObject savedJson = tryReadSavedTokens(accountId);
+        MSARefreshTokenCacheItem savedRefreshToken = (savedJson != null) ? tryParseSavedRefreshToken(savedJson) : null;
 
         if (savedRefreshToken == null) {
             Log.i(TAG, "Failed to load saved refresh token.");
@@ -485,18 +1221,44 @@ final class MSATokenCache {
         }
 
         Log.i(TAG, "Successfully loaded saved refresh token.");
+        mAccountId = accountId;
         mCachedRefreshToken = savedRefreshToken;
-        markAllTokensExpired(); // Force a refresh on everything on first use
+        mCachedRefreshToken.scheduleProactiveRefresh();
+        restoreSavedAccessTokens(savedJson);
+
+        if (!savedJson.has(JSON_EXPIRATION_KEY)) {
+            Log.i(TAG, "Saved tokens are in the legacy format, migrating.");
+            trySaveTokens();
+        }
         return true;
     }
 
     /**
-     * Clears all tokens from the cache, and any saved refresh tokens belonging to this app in persistent storage.
+     * Clears all tokens from the cache, and any saved tokens belonging to this cache's account in persistent storage.
      */
     public synchronized void clearTokens() {
+        cancelProactiveRefreshes();
+        mPrefetchClaimed = false;
+
         mCachedAccessTokens.clear();
         mCachedRefreshToken = null;
-        tryClearSavedRefreshToken();
+
+        if (mAccountId != null) {
+            tryClearSavedRefreshToken(mAccountId);
+            mAccountId = null;
+        }
+    }
+
+    /**
+     * Cancels the scheduled background refreshes of all tokens in the cache.
+     */
+    private synchronized void cancelProactiveRefreshes() {
+        for (MSATokenCacheItem cachedAccessToken : mCachedAccessTokens.values()) {
+            cachedAccessToken.cancelProactiveRefresh();
+        }
+        if (mCachedRefreshToken != null) {
+            mCachedRefreshToken.cancelProactiveRefresh();
+        }
     }
 
     /**
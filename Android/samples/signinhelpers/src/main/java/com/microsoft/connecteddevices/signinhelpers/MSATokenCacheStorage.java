@@ -0,0 +1,245 @@
+//
+// Copyright (c) Microsoft Corporation. All rights reserved.
+//
+
+package com.microsoft.connecteddevices.signinhelpers;
+
+import android.os.SystemClock;
+import android.support.annotation.Keep;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Persists MSATokenCache state for every client id and account in a single save file, laid out as
+ * { clientId: { accountId: cacheState } }, so that the state of any one account is a constant-time lookup.
+ * The parsed contents of the file are kept in memory, so the file is read at most once per process.
+ * Writes happen in the background: bursts of updates are coalesced into one write, which goes to a temporary file
+ * that is synced to disk and then renamed over the save file, so a crash mid-write never leaves a corrupt save file behind.
+ */
+@Keep
+final class MSATokenCacheStorage {
+    private static final String TAG = MSATokenCacheStorage.class.getName();
+
+    // How long to wait after an update before writing, so that updates arriving in the meantime go out in the same write
+    private static final long WRITE_COALESCE_MILLIS = 500;
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    // Files saved before multiple accounts were supported hold a single cache state directly under the client id,
+    // recognizable by this key. Such a state is filed under LEGACY_ACCOUNT_ID until the account it belongs to claims it.
+    private static final String LEGACY_FORMAT_KEY = "refresh_token";
+    public static final String LEGACY_ACCOUNT_ID = "";
+
+    private static final ScheduledExecutorService sWriteExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    // One instance per save file, so that every cache in the process shares the same in-memory contents
+    private static final Map<String, MSATokenCacheStorage> sStorages = new HashMap<>();
+
+    private final File mFile;
+    private JSONObject mJson = null; // Contents of the whole save file, keyed by client id. Loaded on first use.
+    private boolean mWriteScheduled = false;
+    private final Object mWriteLock = new Object();
+
+    private MSATokenCacheStorage(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Returns the storage for the given save file, creating it if needed.
+     */
+    public static synchronized MSATokenCacheStorage forFile(File file) {
+        String path = file.getAbsolutePath();
+        MSATokenCacheStorage storage = sStorages.get(path);
+        if (storage == null) {
+            storage = new MSATokenCacheStorage(file);
+            sStorages.put(path, storage);
+        }
+        return storage;
+    }
+
+    /**
+     * Returns the saved state for the given client id and account, or null if there is none.
+     */
+    public synchronized JSONObject read(String clientId, String accountId) {
+        JSONObject clientJson = getJson().optJSONObject(clientId);
+        return (clientJson != null) ? clientJson.optJSONObject(accountId) : null;
+    }
+
+    /**
+     * Returns the ids of all accounts with saved state for the given client id, including LEGACY_ACCOUNT_ID if there is unclaimed state.
+     */
+    public synchronized List<String> getAccountIds(String clientId) {
+        List<String> accountIds = new ArrayList<>();
+        JSONObject clientJson = getJson().optJSONObject(clientId);
+        if (clientJson != null) {
+            Iterator<String> keys = clientJson.keys();
+            while (keys.hasNext()) {
+                accountIds.add(keys.next());
+            }
+        }
+        return accountIds;
+    }
+
+    /**
+     * Replaces the saved state for the given client id and account. The save file is written in the background.
+     */
+    public synchronized void write(String clientId, String accountId, JSONObject accountJson) throws JSONException {
+        JSONObject clientJson = getJson().optJSONObject(clientId);
+        if (clientJson == null) {
+            clientJson = new JSONObject();
+            mJson.put(clientId, clientJson);
+        }
+
+        clientJson.put(accountId, accountJson);
+        scheduleWrite();
+    }
+
+    /**
+     * Removes the saved state for the given client id and account. The save file is written in the background.
+     */
+    public synchronized void remove(String clientId, String accountId) {
+        JSONObject clientJson = getJson().optJSONObject(clientId);
+        if (clientJson == null) {
+            return;
+        }
+
+        clientJson.remove(accountId);
+        if (clientJson.length() <= 0) {
+            mJson.remove(clientId);
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * Synchronously writes any pending update to disk.
+     */
+    public void flush() {
+        writeNow();
+    }
+
+    /**
+     * Private helper - returns the in-memory contents of the save file, reading the file first if this has not been done yet.
+     * Must be called while holding this object's lock.
+     */
+    private JSONObject getJson() {
+        if (mJson == null) {
+            mJson = new JSONObject();
+            if (mFile.exists()) {
+                try {
+                    long startMillis = SystemClock.elapsedRealtime();
+                    String data = IOUtil.readUTF8Stream(new FileInputStream(mFile), mFile.length());
+                    SigninHelperMetrics.reportPersistenceIO(false, SystemClock.elapsedRealtime() - startMillis, mFile.length());
+
+                    mJson = new JSONObject(data);
+                    fileLegacyStates();
+                } catch (IOException | JSONException e) {
+                    // Failed to read or parse the file, start over with an empty one
+                    Log.e(TAG, "Exception reading token save file. \"" + e.getLocalizedMessage() + "\" Starting with an empty one.");
+                }
+            }
+        }
+        return mJson;
+    }
+
+    /**
+     * Private helper - files any single-account cache state saved by an older version under LEGACY_ACCOUNT_ID.
+     * Must be called while holding this object's lock.
+     */
+    private void fileLegacyStates() throws JSONException {
+        List<String> clientIds = new ArrayList<>();
+        Iterator<String> keys = mJson.keys();
+        while (keys.hasNext()) {
+            clientIds.add(keys.next());
+        }
+
+        for (String clientId : clientIds) {
+            JSONObject clientJson = mJson.optJSONObject(clientId);
+            if (clientJson != null && clientJson.has(LEGACY_FORMAT_KEY)) {
+                JSONObject migratedJson = new JSONObject();
+                migratedJson.put(LEGACY_ACCOUNT_ID, clientJson);
+                mJson.put(clientId, migratedJson);
+            }
+        }
+    }
+
+    /**
+     * Private helper - schedules a background write, unless one is already pending. Must be called while holding this object's lock.
+     */
+    private void scheduleWrite() {
+        if (mWriteScheduled) {
+            return; // The pending write will pick up this update too
+        }
+
+        mWriteScheduled = true;
+        sWriteExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                writeNow();
+            }
+        }, WRITE_COALESCE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Private helper - writes the current in-memory contents to disk, if there is a pending update.
+     */
+    private void writeNow() {
+        // Background writes and flushes may overlap. Hold the write lock from taking the snapshot until it is on disk,
+        // so that an older snapshot can never be written over a newer one.
+        synchronized (mWriteLock) {
+            String data;
+            synchronized (this) {
+                if (!mWriteScheduled) {
+                    return; // Already written
+                }
+
+                mWriteScheduled = false;
+                data = (mJson.length() > 0) ? mJson.toString() : null;
+            }
+
+            if (data == null) {
+                // Just delete the file if the json would be empty
+                mFile.delete();
+                Log.i(TAG, "Deleted token save file.");
+                return;
+            }
+
+            File tempFile = new File(mFile.getPath() + TEMP_FILE_SUFFIX);
+            try {
+                long startMillis = SystemClock.elapsedRealtime();
+                byte[] bytes = data.getBytes("UTF-8");
+                try (FileOutputStream stream = new FileOutputStream(tempFile)) {
+                    stream.write(bytes);
+                    stream.flush();
+                    stream.getFD().sync();
+                }
+
+                if (!tempFile.renameTo(mFile)) {
+                    throw new IOException("Could not replace token save file.");
+                }
+
+                SigninHelperMetrics.reportPersistenceIO(true, SystemClock.elapsedRealtime() - startMillis, bytes.length);
+
+                Log.i(TAG, "Wrote token save file.");
+
+            } catch (IOException e) {
+                Log.e(TAG, "Exception while writing token save file. \"" + e.getLocalizedMessage() + "\" Will not save.");
+                tempFile.delete();
+            }
+        }
+    }
+}
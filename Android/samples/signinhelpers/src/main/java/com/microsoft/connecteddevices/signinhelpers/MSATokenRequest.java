@@ -4,31 +4,25 @@
 
 package com.microsoft.connecteddevices.signinhelpers;
 
+import android.os.SystemClock;
 import android.support.annotation.Keep;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 import android.util.Pair;
 
 import com.microsoft.connecteddevices.AsyncOperation;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.util.LinkedList;
 import java.util.List;
 
-import javax.net.ssl.HttpsURLConnection;
-
-import org.json.JSONException;
-import org.json.JSONObject;
-
 /**
  * Encapsulates a noninteractive request for an MSA token.
  * This request may be performed multiple times.
@@ -38,6 +32,29 @@ final class MSATokenRequest {
 
     private static final String TAG = MSATokenRequest.class.getName();
 
+    private static final URL DEFAULT_TOKEN_URL = createUrl("https://login.live.com/oauth20_token.srf");
+
+    /**
+     * Reads the result of a token request straight off the response stream, so the response is never held as a whole string.
+     * Only a successful response is parsed. The body of a failed one is left for the transport to drain.
+     */
+    private static final HttpTransport.BodyReader<MSATokenRequest.Result> RESULT_READER =
+        new HttpTransport.BodyReader<MSATokenRequest.Result>() {
+            @Override
+            public MSATokenRequest.Result read(int statusCode, InputStream stream, long contentLength) throws IOException {
+                Result.Status status = getStatus(statusCode);
+                if (status != Result.Status.SUCCESS) {
+                    Log.e(TAG, "Failed to get token with HTTP code: " + statusCode);
+                    return new MSATokenRequest.Result(status);
+                }
+
+                return readSuccessfulResult(stream);
+            }
+        };
+
+    // Endpoint token requests are posted to, replaceable so that requests can be pointed at a stand-in service
+    private static volatile URL sTokenUrl = DEFAULT_TOKEN_URL;
+
     // OAuth Token Grant Type
     public static final class GrantType {
         public static final String CODE = "authorization_code";
@@ -51,18 +68,19 @@ final class MSATokenRequest {
         public static enum Status { SUCCESS, TRANSIENT_FAILURE, PERMANENT_FAILURE }
 
         private final Status mStatus;
-        private String mAccessToken = null;
-        private String mRefreshToken = null;
-        private int mExpiresIn = 0;
+        private final String mAccessToken;
+        private final String mRefreshToken;
+        private final int mExpiresIn;
 
-        Result(Status status, JSONObject responseJson) {
-            mStatus = status;
+        Result(Status status) {
+            this(status, null, null, 0);
+        }
 
-            if (responseJson != null) {
-                mAccessToken = responseJson.optString("access_token", null);
-                mRefreshToken = responseJson.optString("refresh_token", null);
-                mExpiresIn = responseJson.optInt("expires_in"); // returns 0 if this key doesn't exist
-            }
+        Result(Status status, String accessToken, String refreshToken, int expiresIn) {
+            mStatus = status;
+            mAccessToken = accessToken;
+            mRefreshToken = refreshToken;
+            mExpiresIn = expiresIn;
         }
 
         public Status getStatus() {
@@ -94,6 +112,85 @@ final class MSATokenRequest {
         mRedirectUri = redirectUri;
     }
 
+    /**
+     * Returns the space-separated scopes this request asks for.
+     */
+    public String getScope() {
+        return mScope;
+    }
+
+    /**
+     * Private helper - parses a URL that is known to be well formed.
+     */
+    private static URL createUrl(String url) {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Replaces the endpoint that token requests are posted to.
+     * @param tokenUrl URL of the token endpoint, or null to go back to the MSA endpoint
+     */
+    public static void setTokenUrl(URL tokenUrl) {
+        sTokenUrl = (tokenUrl != null) ? tokenUrl : DEFAULT_TOKEN_URL;
+    }
+
+    /**
+     * Maps the HTTP status code of a token response to the status of the request.
+     */
+    private static Result.Status getStatus(int responseCode) {
+        if (responseCode >= 500) {
+            return Result.Status.TRANSIENT_FAILURE;
+        } else if (responseCode >= 400) {
+            return Result.Status.PERMANENT_FAILURE;
+        } else if ((responseCode >= 200 && responseCode < 300) || responseCode == 304) {
+            return Result.Status.SUCCESS;
+        } else {
+            return Result.Status.TRANSIENT_FAILURE;
+        }
+    }
+
+    /**
+     * Parses the json body of a successful token response. Fields other than the tokens and their lifetime are skipped.
+     *
+     * @param stream Response body to parse
+     * @return A successful result holding the parsed tokens
+     * @throws IOException Thrown if the body cannot be read, or is not a json object
+     */
+    private static MSATokenRequest.Result readSuccessfulResult(InputStream stream) throws IOException {
+        String accessToken = null;
+        String refreshToken = null;
+        int expiresIn = 0; // 0 if the response has no expires_in
+
+        // Not closed, the transport owns the stream
+        JsonReader reader = new JsonReader(new InputStreamReader(stream, "UTF-8"));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.skipValue();
+                } else if (name.equals("access_token")) {
+                    accessToken = reader.nextString();
+                } else if (name.equals("refresh_token")) {
+                    refreshToken = reader.nextString();
+                } else if (name.equals("expires_in")) {
+                    expiresIn = reader.nextInt();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Token response was improperly formatted.", e);
+        }
+
+        return new MSATokenRequest.Result(Result.Status.SUCCESS, accessToken, refreshToken, expiresIn);
+    }
+
     /**
      * Builds a query string from a list of name-value pairs.
      *
@@ -131,15 +228,15 @@ final class MSATokenRequest {
         final String clientId, final String grantType, final String scope, final String redirectUri, final String token) {
         if (token == null || token.length() <= 0) {
             Log.e(TAG, "Refresh token or auth code for MSATokenRequest was unexpectedly empty - treating as permanent failure.");
-            return AsyncOperation.completedFuture(new MSATokenRequest.Result(Result.Status.PERMANENT_FAILURE, null));
+            return AsyncOperation.completedFuture(new MSATokenRequest.Result(Result.Status.PERMANENT_FAILURE));
         }
 
         return AsyncOperation.supplyAsync(new AsyncOperation.Supplier<MSATokenRequest.Result>() {
             @Override
             public MSATokenRequest.Result get() {
-                HttpsURLConnection connection = null;
-                MSATokenRequest.Result.Status status = Result.Status.TRANSIENT_FAILURE;
-                JSONObject responseJson = null;
+                long startMillis = SystemClock.elapsedRealtime();
+                MSATokenRequest.Result result;
+                HttpTransport.Timing timing = null;
 
                 try {
                     // Build the query string
@@ -157,41 +254,22 @@ final class MSATokenRequest {
 
                     String queryString = getQueryString(params);
 
-                    // Write the query string
-                    URL url = new URL("https://login.live.com/oauth20_token.srf");
-                    connection = (HttpsURLConnection)url.openConnection();
-                    connection.setDoOutput(true);
-                    connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-                    IOUtil.writeUTF8Stream(connection.getOutputStream(), queryString);
-
-                    // Parse the response
-                    int responseCode = connection.getResponseCode();
-                    if (responseCode >= 500) {
-                        status = Result.Status.TRANSIENT_FAILURE;
-                    } else if (responseCode >= 400) {
-                        status = Result.Status.PERMANENT_FAILURE;
-                    } else if ((responseCode >= 200 && responseCode < 300) || responseCode == 304) {
-                        status = Result.Status.SUCCESS;
-                    } else {
-                        status = Result.Status.TRANSIENT_FAILURE;
-                    }
-
-                    if (status == Result.Status.SUCCESS) {
-                        responseJson = new JSONObject(IOUtil.readUTF8Stream(connection.getInputStream()));
-                    } else {
-                        Log.e(TAG, "Failed to get token with HTTP code: " + responseCode);
-                    }
+                    // Post the query string and parse the response. The transport keeps the connection open for the next request.
+                    HttpTransport.Response<MSATokenRequest.Result> response =
+                        HttpTransport.getDefault().post(sTokenUrl, "application/x-www-form-urlencoded", queryString, RESULT_READER);
+                    result = response.getBody();
+                    timing = response.getTiming();
 
-                } catch (IOException | JSONException e) {
+                } catch (IOException e) {
                     Log.e(TAG, "Failed to get token: \"" + e.getLocalizedMessage() + "\"");
-                } finally {
-                    if (connection != null) {
-                        connection.disconnect();
-                    }
-                    return new MSATokenRequest.Result(status, responseJson);
+                    result = new MSATokenRequest.Result(Result.Status.TRANSIENT_FAILURE);
                 }
+
+                SigninHelperMetrics.reportTokenRequestCompleted(
+                    grantType, result.getStatus() == Result.Status.SUCCESS, SystemClock.elapsedRealtime() - startMillis, timing);
+                return result;
             }
-        });
+        }, SigninHelperExecutors.getIoExecutor());
     }
 
     /**
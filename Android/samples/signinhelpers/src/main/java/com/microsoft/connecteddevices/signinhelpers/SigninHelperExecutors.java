@@ -0,0 +1,152 @@
+//
+// Copyright (c) Microsoft Corporation. All rights reserved.
+//
+
+package com.microsoft.connecteddevices.signinhelpers;
+
+import android.support.annotation.Keep;
+
+import com.microsoft.connecteddevices.AsyncOperation;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors the sign in helpers run their work on.
+ *  - I/O executor:      blocking network requests to token endpoints.
+ *  - Callback executor: continuations that run once a request finishes, such as updating the token cache.
+ * Keeping them apart means slow network requests never hold up callbacks, and the other way around.
+ *
+ * Apps can replace either executor, e.g. to share their own pools, and can check how many tasks are waiting on each.
+ */
+@Keep
+public final class SigninHelperExecutors {
+    private static final int DEFAULT_IO_THREADS = 4;
+    private static final int DEFAULT_CALLBACK_THREADS = 2;
+
+    /**
+     * Private helper class - forwards tasks to another executor, counting those that have been submitted but not yet started.
+     */
+    private static final class QueueTrackingExecutor implements Executor {
+        private final Executor mExecutor;
+        private final AtomicInteger mQueueDepth = new AtomicInteger();
+
+        QueueTrackingExecutor(Executor executor) {
+            mExecutor = executor;
+        }
+
+        @Override
+        public void execute(final Runnable task) {
+            mQueueDepth.incrementAndGet();
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mQueueDepth.decrementAndGet();
+                        task.run();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                mQueueDepth.decrementAndGet();
+                throw e;
+            }
+        }
+
+        int getQueueDepth() {
+            return mQueueDepth.get();
+        }
+    }
+
+    private static QueueTrackingExecutor sDefaultIoExecutor = null;
+    private static QueueTrackingExecutor sDefaultCallbackExecutor = null;
+
+    private static volatile QueueTrackingExecutor sIoExecutor = null;
+    private static volatile QueueTrackingExecutor sCallbackExecutor = null;
+
+    private SigninHelperExecutors() {}
+
+    /**
+     * Replaces the executor that blocking network requests run on.
+     * @param executor  executor to use, or null to go back to the default pool
+     */
+    public static synchronized void setIoExecutor(Executor executor) {
+        sIoExecutor = (executor != null) ? new QueueTrackingExecutor(executor) : null;
+    }
+
+    /**
+     * Replaces the executor that continuations run on.
+     * @param executor  executor to use, or null to go back to the default pool
+     */
+    public static synchronized void setCallbackExecutor(Executor executor) {
+        sCallbackExecutor = (executor != null) ? new QueueTrackingExecutor(executor) : null;
+    }
+
+    /**
+     * Returns the number of network requests waiting for a thread on the I/O executor.
+     */
+    public static int getIoQueueDepth() {
+        return getIoExecutorInternal().getQueueDepth();
+    }
+
+    /**
+     * Returns the number of continuations waiting for a thread on the callback executor.
+     */
+    public static int getCallbackQueueDepth() {
+        return getCallbackExecutorInternal().getQueueDepth();
+    }
+
+    static Executor getIoExecutor() {
+        return getIoExecutorInternal();
+    }
+
+    static Executor getCallbackExecutor() {
+        return getCallbackExecutorInternal();
+    }
+
+    /**
+     * Chains a continuation onto an operation. If the operation has already completed, e.g. a token served from the cache,
+     * the continuation runs right away on the calling thread. Otherwise it runs on the callback executor once the operation completes.
+     * Only use this for continuations that are quick to run.
+     */
+    static <T, U> AsyncOperation<U> thenCompose(
+        AsyncOperation<T> operation, AsyncOperation.ResultFunction<? super T, ? extends AsyncOperation<U>> function) {
+        return operation.isDone() ? operation.<U>thenCompose(function) : operation.<U>thenComposeAsync(function, getCallbackExecutor());
+    }
+
+    /**
+     * Same as thenCompose, for continuations that produce no value.
+     */
+    static <T> AsyncOperation<Void> thenAccept(AsyncOperation<T> operation, AsyncOperation.ResultConsumer<? super T> consumer) {
+        return operation.isDone() ? operation.thenAccept(consumer) : operation.thenAcceptAsync(consumer, getCallbackExecutor());
+    }
+
+    private static QueueTrackingExecutor getIoExecutorInternal() {
+        QueueTrackingExecutor executor = sIoExecutor;
+        if (executor != null) {
+            return executor;
+        }
+
+        synchronized (SigninHelperExecutors.class) {
+            if (sDefaultIoExecutor == null) {
+                sDefaultIoExecutor = new QueueTrackingExecutor(Executors.newFixedThreadPool(DEFAULT_IO_THREADS));
+            }
+            return (sIoExecutor != null) ? sIoExecutor : sDefaultIoExecutor;
+        }
+    }
+
+    private static QueueTrackingExecutor getCallbackExecutorInternal() {
+        QueueTrackingExecutor executor = sCallbackExecutor;
+        if (executor != null) {
+            return executor;
+        }
+
+        synchronized (SigninHelperExecutors.class) {
+            if (sDefaultCallbackExecutor == null) {
+                sDefaultCallbackExecutor = new QueueTrackingExecutor(Executors.newFixedThreadPool(DEFAULT_CALLBACK_THREADS));
+            }
+            return (sCallbackExecutor != null) ? sCallbackExecutor : sDefaultCallbackExecutor;
+        }
+    }
+}
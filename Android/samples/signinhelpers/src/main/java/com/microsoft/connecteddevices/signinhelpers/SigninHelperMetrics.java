@@ -0,0 +1,121 @@
+//
+// Copyright (c) Microsoft Corporation. All rights reserved.
+//
+
+package com.microsoft.connecteddevices.signinhelpers;
+
+import android.support.annotation.Keep;
+
+/**
+ * Reports what the sign in helpers' token layer is doing, so that apps can forward it to their own telemetry.
+ * Nothing is reported until a listener is set, and while no listener is set each reporting point costs a single field read.
+ */
+@Keep
+public final class SigninHelperMetrics {
+    /**
+     * Receives token layer events. Methods are called on whichever thread the event happened on,
+     * often while a token request is waiting, so implementations should return quickly and not throw.
+     */
+    public interface Listener {
+        /**
+         * An access token was requested, and one that could be used right away was found in the cache.
+         * @param scope  scope(s) the token was requested for, or the resource for AAD
+         */
+        void onAccessTokenCacheHit(String scope);
+
+        /**
+         * An access token was requested, and the caller has to wait for one to be fetched.
+         * @param scope  scope(s) the token was requested for, or the resource for AAD
+         */
+        void onAccessTokenCacheMiss(String scope);
+
+        /**
+         * A request to the MSA token endpoint finished.
+         * @param grantType       "authorization_code" or "refresh_token"
+         * @param succeeded       whether a token was returned
+         * @param durationMillis  time from starting the request until the result was known
+         * @param timing          how long each phase of the HTTP exchange took, or null if no response was received
+         */
+        void onTokenRequestCompleted(String grantType, boolean succeeded, long durationMillis, HttpTransport.Timing timing);
+
+        /**
+         * A token refresh failed with a transient error and was scheduled to be retried.
+         * @param attempt      zero for the first retry of a refresh, one for the second, and so on
+         * @param delayMillis  how long until the retry
+         */
+        void onTokenRefreshRetry(int attempt, long delayMillis);
+
+        /**
+         * A token refresh failed permanently, and the account's cached tokens were cleared.
+         */
+        void onPermanentFailure();
+
+        /**
+         * The token save file was read or written.
+         * @param write           true for a write, false for a read
+         * @param durationMillis  time spent on the file
+         * @param bytes           size of the file's contents
+         */
+        void onPersistenceIO(boolean write, long durationMillis, long bytes);
+    }
+
+    private static volatile Listener sListener = null;
+
+    private SigninHelperMetrics() {}
+
+    /**
+     * Sets the listener to report to, replacing any previous one. Pass null to stop reporting.
+     */
+    public static void setListener(Listener listener) {
+        sListener = listener;
+    }
+
+    /**
+     * Returns whether a listener is set, so that callers can skip gathering data nobody will receive.
+     */
+    static boolean isEnabled() {
+        return sListener != null;
+    }
+
+    static void reportAccessTokenCacheHit(String scope) {
+        Listener listener = sListener;
+        if (listener != null) {
+            listener.onAccessTokenCacheHit(scope);
+        }
+    }
+
+    static void reportAccessTokenCacheMiss(String scope) {
+        Listener listener = sListener;
+        if (listener != null) {
+            listener.onAccessTokenCacheMiss(scope);
+        }
+    }
+
+    static void reportTokenRequestCompleted(String grantType, boolean succeeded, long durationMillis, HttpTransport.Timing timing) {
+        Listener listener = sListener;
+        if (listener != null) {
+            listener.onTokenRequestCompleted(grantType, succeeded, durationMillis, timing);
+        }
+    }
+
+    static void reportTokenRefreshRetry(int attempt, long delayMillis) {
+        Listener listener = sListener;
+        if (listener != null) {
+            listener.onTokenRefreshRetry(attempt, delayMillis);
+        }
+    }
+
+    static void reportPermanentFailure() {
+        Listener listener = sListener;
+        if (listener != null) {
+            listener.onPermanentFailure();
+        }
+    }
+
+    static void reportPersistenceIO(boolean write, long durationMillis, long bytes) {
+        Listener listener = sListener;
+        if (listener != null) {
+            listener.onPersistenceIO(write, durationMillis, bytes);
+        }
+    }
+}
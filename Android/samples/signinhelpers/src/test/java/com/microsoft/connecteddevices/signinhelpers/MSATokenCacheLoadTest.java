@@ -0,0 +1,167 @@
+//
+// Copyright (c) Microsoft Corporation. All rights reserved.
+//
+
+package com.microsoft.connecteddevices.signinhelpers;
+
+import android.content.Context;
+
+import com.microsoft.connecteddevices.AsyncOperation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Load harness for MSATokenCache, run on the JVM against an in-process StandInTokenServer.
+ *
+ * The cache starts out holding an expired access token for each of a handful of scopes. Many callers then ask for those tokens at
+ * the same time. The test reports throughput, latency percentiles and the requests the server saw per logical token, and checks that:
+ *  - every call completes with a token within a deadline, so a refresh that is never completed fails the test instead of hanging it
+ *  - concurrent callers share refreshes: the server sees at most one request per scope
+ *  - once a scope is refreshed, calls are served from the cache: each caller misses at most once per scope
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MSATokenCacheLoadTest {
+    private static final String CLIENT_ID = "standin-client";
+    private static final String ACCOUNT_ID = "standin-load-test-account";
+
+    private static final int CALLERS = 16;
+    private static final int REQUESTS_PER_CALLER = 500;
+    private static final int SCOPE_COUNT = 4;
+    private static final long SERVER_LATENCY_MILLIS = 50;
+    private static final long CALL_TIMEOUT_SECONDS = 30;
+
+    private StandInTokenServer mServer;
+    private MSATokenCache mTokenCache;
+    private final List<String> mScopes = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new StandInTokenServer(0);
+        mServer.setLatency(SERVER_LATENCY_MILLIS, 0);
+        mServer.start();
+        MSASigninHelperAccount.setTokenEndpoint(new URL("http://localhost:" + mServer.getPort() + StandInTokenServer.TOKEN_PATH));
+
+        // Seed the cache directly rather than through MSASigninHelperAccount, whose sign in prefetches tokens the measured phase never asks for.
+        // Setting the refresh token marks the access tokens set before it as expired, so the first callers for each scope refresh it.
+        Context context = RuntimeEnvironment.application;
+        mTokenCache = new MSATokenCache(CLIENT_ID, context);
+        for (int i = 0; i < SCOPE_COUNT; i++) {
+            String scope = "https://standin.test/scope" + i;
+            mScopes.add(scope);
+            mTokenCache.setAccessToken("standin-seed-access-token", scope, 3600);
+        }
+        mTokenCache.setRefreshToken(ACCOUNT_ID, "standin-seed-refresh-token");
+        mServer.resetStats();
+    }
+
+    @After
+    public void tearDown() {
+        if (mTokenCache != null) {
+            mTokenCache.clearTokens();
+        }
+        MSASigninHelperAccount.setTokenEndpoint(null);
+        if (mServer != null) {
+            mServer.stop();
+        }
+    }
+
+    @Test
+    public void concurrentCallersShareRefreshes() throws Exception {
+        final AtomicInteger hits = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+        List<Future<long[]>> results = new ArrayList<>();
+        long startNanos = System.nanoTime();
+        for (int caller = 0; caller < CALLERS; caller++) {
+            final Random random = new Random(caller);
+            results.add(executor.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws Exception {
+                    long[] latencies = new long[REQUESTS_PER_CALLER];
+                    for (int i = 0; i < REQUESTS_PER_CALLER; i++) {
+                        String scope = mScopes.get(random.nextInt(mScopes.size()));
+                        long requestNanos = System.nanoTime();
+                        AsyncOperation<String> operation = mTokenCache.getAccessTokenAsync(scope);
+                        if (operation.isDone()) {
+                            hits.incrementAndGet();
+                        }
+
+                        // Throws TimeoutException, failing the test, if the call is never completed
+                        String token = operation.get(CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                        latencies[i] = System.nanoTime() - requestNanos;
+                        if (token == null) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    return latencies;
+                }
+            }));
+        }
+
+        long[] latencies = new long[CALLERS * REQUESTS_PER_CALLER];
+        int count = 0;
+        for (Future<long[]> result : results) {
+            long[] callerLatencies = result.get();
+            System.arraycopy(callerLatencies, 0, latencies, count, callerLatencies.length);
+            count += callerLatencies.length;
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        executor.shutdown();
+
+        Arrays.sort(latencies);
+        Map<String, Long> requestsPerToken = mServer.getRequestsPerToken();
+        long serverRequests = mServer.getRequestCount();
+        double hitRatio = (double)hits.get() / latencies.length;
+
+        System.out.println("Completed " + latencies.length + " token requests from " + CALLERS + " callers in " + (elapsedNanos / 1000000) +
+                           "ms, " + String.format(Locale.US, "%.1f", latencies.length / (elapsedNanos / 1e9)) + " requests/s");
+        System.out.println("Latency: p50 " + toMillis(percentile(latencies, 50)) + "ms, p90 " + toMillis(percentile(latencies, 90)) + "ms, p99 " +
+                           toMillis(percentile(latencies, 99)) + "ms, max " + toMillis(latencies[latencies.length - 1]) + "ms");
+        System.out.println("Server: " + serverRequests + " requests for " + requestsPerToken.size() + " logical token(s) " + requestsPerToken +
+                           ", cache hit ratio " + String.format(Locale.US, "%.4f", hitRatio));
+
+        assertEquals("Calls completed without a token", 0, failures.get());
+        for (String scope : mScopes) {
+            Long requests = requestsPerToken.get(MSATokenRequest.GrantType.REFRESH + " " + scope);
+            assertTrue("Scope was refreshed more than once: " + scope, requests == null || requests <= 1);
+        }
+        assertTrue("More token requests than scopes: " + serverRequests, serverRequests <= SCOPE_COUNT);
+
+        // A caller can only miss on a scope while its refresh is in flight, which it then waits for
+        int maxMisses = CALLERS * SCOPE_COUNT;
+        assertTrue("Cache hit ratio too low: " + hitRatio, hits.get() >= latencies.length - maxMisses);
+    }
+
+    // region Private helpers
+    private static long percentile(long[] sortedValues, int percent) {
+        int index = (int)Math.ceil(percent / 100.0 * sortedValues.length) - 1;
+        return sortedValues[Math.max(0, Math.min(index, sortedValues.length - 1))];
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format(Locale.US, "%.2f", nanos / 1e6);
+    }
+    // endregion
+}
@@ -0,0 +1,282 @@
+//
+// Copyright (c) Microsoft Corporation. All rights reserved.
+//
+
+package com.microsoft.connecteddevices.signinhelpers;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the MSA token endpoint, for exercising the sign in helpers' caching, retry and circuit breaker logic
+ * without the real service. Runs on the JVM: MSATokenCacheLoadTest starts it in-process, and it can also run on its own on the
+ * development machine, to serve a device or emulator.
+ *
+ * Answers every POST to /oauth20_token.srf like the real endpoint would, handing out made-up tokens. Behavior is configurable:
+ *  - latency:    every response is delayed by a fixed time plus a random jitter
+ *  - failures:   a share of requests fails with 400 invalid_grant (a permanent failure to the helpers)
+ *                and another share with 503 (a transient failure)
+ *  - expiry:     the expires_in value handed out with every access token
+ *
+ * Also serves GET /stats, a json summary of the requests answered since the last POST /reset, including the number of requests
+ * per logical token (grant type and scope) so that load tests can check how well requests for the same token are coalesced.
+ *
+ * To run it on its own:
+ *   java StandInTokenServer.java --port 8080 --latency-ms 50 --jitter-ms 50 --server-error-rate 0.05 --expires-in 330
+ * then point the helpers at it with MSASigninHelperAccount.setTokenEndpoint(new URL("http://10.0.2.2:8080/oauth20_token.srf"))
+ * (10.0.2.2 is the host as seen from the Android emulator). Apps talking plain http to it need cleartext traffic allowed.
+ */
+public final class StandInTokenServer {
+    public static final String TOKEN_PATH = "/oauth20_token.srf";
+    public static final String STATS_PATH = "/stats";
+    public static final String RESET_PATH = "/reset";
+
+    private final HttpServer mServer;
+    private final Random mRandom = new Random();
+
+    private volatile long mLatencyMillis = 0;
+    private volatile long mJitterMillis = 0;
+    private volatile double mClientErrorRate = 0;
+    private volatile double mServerErrorRate = 0;
+    private volatile int mExpiresInSeconds = 3600;
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mClientErrorCount = new AtomicLong();
+    private final AtomicLong mServerErrorCount = new AtomicLong();
+    private final Map<String, AtomicLong> mRequestsPerToken = new ConcurrentHashMap<>();
+
+    public StandInTokenServer(int port) throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(port), 0);
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.createContext(TOKEN_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleTokenRequest(exchange);
+            }
+        });
+        mServer.createContext(STATS_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, getStatsJson());
+            }
+        });
+        mServer.createContext(RESET_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                resetStats();
+                respond(exchange, 200, "{}");
+            }
+        });
+    }
+
+    // region Configuration
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        mLatencyMillis = latencyMillis;
+        mJitterMillis = jitterMillis;
+    }
+
+    /**
+     * @param clientErrorRate  share of token requests, from 0 to 1, answered with 400 invalid_grant
+     * @param serverErrorRate  share of token requests, from 0 to 1, answered with 503
+     */
+    public void setErrorRates(double clientErrorRate, double serverErrorRate) {
+        mClientErrorRate = clientErrorRate;
+        mServerErrorRate = serverErrorRate;
+    }
+
+    public void setExpiresInSeconds(int expiresInSeconds) {
+        mExpiresInSeconds = expiresInSeconds;
+    }
+    // endregion
+
+    public void start() {
+        mServer.start();
+    }
+
+    public void stop() {
+        mServer.stop(0);
+    }
+
+    public int getPort() {
+        return mServer.getAddress().getPort();
+    }
+
+    public void resetStats() {
+        mRequestCount.set(0);
+        mClientErrorCount.set(0);
+        mServerErrorCount.set(0);
+        mRequestsPerToken.clear();
+    }
+
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * Returns the number of requests answered since the last reset for each logical token, keyed by grant type and scope.
+     */
+    public Map<String, Long> getRequestsPerToken() {
+        Map<String, Long> requestsPerToken = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : mRequestsPerToken.entrySet()) {
+            requestsPerToken.put(entry.getKey(), entry.getValue().get());
+        }
+        return requestsPerToken;
+    }
+
+    /**
+     * Returns a json summary of the requests answered since the last reset.
+     */
+    public String getStatsJson() {
+        long requests = mRequestCount.get();
+        int logicalTokens = mRequestsPerToken.size();
+        double requestsPerToken = (logicalTokens > 0) ? (double)requests / logicalTokens : 0;
+
+        StringBuilder perToken = new StringBuilder();
+        for (Map.Entry<String, AtomicLong> entry : mRequestsPerToken.entrySet()) {
+            if (perToken.length() > 0) {
+                perToken.append(',');
+            }
+            perToken.append(quote(entry.getKey())).append(':').append(entry.getValue().get());
+        }
+
+        return "{\"requests\":" + requests + ",\"client_errors\":" + mClientErrorCount.get() + ",\"server_errors\":" + mServerErrorCount.get() +
+            ",\"logical_tokens\":" + logicalTokens + ",\"requests_per_logical_token\":" + requestsPerToken + ",\"per_token\":{" + perToken + "}}";
+    }
+
+    private void handleTokenRequest(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "{\"error\":\"invalid_request\"}");
+            return;
+        }
+
+        Map<String, String> params = parseForm(readBody(exchange.getRequestBody()));
+        String grantType = params.get("grant_type");
+        String scope = params.containsKey("scope") ? params.get("scope") : "";
+
+        mRequestCount.incrementAndGet();
+        String tokenKey = grantType + " " + scope;
+        AtomicLong tokenRequests = mRequestsPerToken.get(tokenKey);
+        if (tokenRequests == null) {
+            mRequestsPerToken.putIfAbsent(tokenKey, new AtomicLong());
+            tokenRequests = mRequestsPerToken.get(tokenKey);
+        }
+        tokenRequests.incrementAndGet();
+
+        sleep(mLatencyMillis + ((mJitterMillis > 0) ? (long)(nextDouble() * mJitterMillis) : 0));
+
+        double roll = nextDouble();
+        if (roll < mClientErrorRate) {
+            mClientErrorCount.incrementAndGet();
+            respond(exchange, 400, "{\"error\":\"invalid_grant\",\"error_description\":\"Injected by the stand-in server.\"}");
+            return;
+        }
+        if (roll < mClientErrorRate + mServerErrorRate) {
+            mServerErrorCount.incrementAndGet();
+            respond(exchange, 503, "{\"error\":\"temporarily_unavailable\"}");
+            return;
+        }
+
+        if (!"authorization_code".equals(grantType) && !"refresh_token".equals(grantType)) {
+            respond(exchange, 400, "{\"error\":\"unsupported_grant_type\"}");
+            return;
+        }
+
+        respond(exchange, 200, "{\"token_type\":\"bearer\",\"expires_in\":" + mExpiresInSeconds + ",\"scope\":" + quote(scope) +
+            ",\"access_token\":" + quote("standin-access-" + UUID.randomUUID()) +
+            ",\"refresh_token\":" + quote("standin-refresh-" + UUID.randomUUID()) + "}");
+    }
+
+    private synchronized double nextDouble() {
+        return mRandom.nextDouble();
+    }
+
+    private static void respond(HttpExchange exchange, int statusCode, String json) throws IOException {
+        byte[] body = json.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(statusCode, body.length);
+        try (OutputStream stream = exchange.getResponseBody()) {
+            stream.write(body);
+        }
+    }
+
+    private static String readBody(InputStream stream) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8 * 1024];
+        int count;
+        while ((count = stream.read(buffer)) != -1) {
+            output.write(buffer, 0, count);
+        }
+        return new String(output.toByteArray(), "UTF-8");
+    }
+
+    private static Map<String, String> parseForm(String body) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        for (String pair : body.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, separator), "UTF-8"), URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 8080;
+        long latencyMillis = 0;
+        long jitterMillis = 0;
+        double clientErrorRate = 0;
+        double serverErrorRate = 0;
+        int expiresInSeconds = 3600;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+            case "--port": port = Integer.parseInt(value); break;
+            case "--latency-ms": latencyMillis = Long.parseLong(value); break;
+            case "--jitter-ms": jitterMillis = Long.parseLong(value); break;
+            case "--client-error-rate": clientErrorRate = Double.parseDouble(value); break;
+            case "--server-error-rate": serverErrorRate = Double.parseDouble(value); break;
+            case "--expires-in": expiresInSeconds = Integer.parseInt(value); break;
+            default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        StandInTokenServer server = new StandInTokenServer(port);
+        server.setLatency(latencyMillis, jitterMillis);
+        server.setErrorRates(clientErrorRate, serverErrorRate);
+        server.setExpiresInSeconds(expiresInSeconds);
+        server.start();
+        System.out.println("Stand-in token server listening on http://localhost:" + server.getPort() + TOKEN_PATH);
+    }
+}